@@ -0,0 +1,92 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+
+/**
+ * Settings for the embedded BI platform, read from plugins/spoon/agile-bi/agile-bi-platform.properties.
+ * A JVM system property with the same key overrides the value in the file.
+ */
+public class AgileBiPlatformConfig {
+
+  private static final String CONFIG_FILE_LOCATION = "plugins/spoon/agile-bi/agile-bi-platform.properties"; //$NON-NLS-1$
+
+  private static AgileBiPlatformConfig instance = null;
+
+  private Properties props = new Properties();
+
+  public static synchronized AgileBiPlatformConfig getInstance() {
+    if (instance == null) {
+      instance = new AgileBiPlatformConfig();
+    }
+    return instance;
+  }
+
+  protected AgileBiPlatformConfig() {
+    reload();
+  }
+
+  /**
+   * Re-reads the properties file. Missing files leave every setting at its default.
+   */
+  public synchronized void reload() {
+    Properties newProps = new Properties();
+    File file = new File(CONFIG_FILE_LOCATION);
+    if (file.exists()) {
+      InputStream in = null;
+      try {
+        in = new FileInputStream(file);
+        newProps.load(in);
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+    props = newProps;
+  }
+
+  public synchronized String getString(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    if (Const.isEmpty(value)) {
+      value = props.getProperty(key);
+    }
+    return Const.isEmpty(value) ? defaultValue : value.trim();
+  }
+
+  public int getInt(String key, int defaultValue) {
+    return Const.toInt(getString(key, null), defaultValue);
+  }
+
+  public long getLong(String key, long defaultValue) {
+    return Const.toLong(getString(key, null), defaultValue);
+  }
+
+  public boolean getBoolean(String key, boolean defaultValue) {
+    String value = getString(key, null);
+    return value == null ? defaultValue : "true".equalsIgnoreCase(value) || "Y".equalsIgnoreCase(value); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+}
@@ -0,0 +1,563 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.Database;
+import org.pentaho.di.core.database.DatabaseInterface;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.database.H2DatabaseMeta;
+import org.pentaho.di.core.database.MSSQLServerDatabaseMeta;
+import org.pentaho.di.core.database.MySQLDatabaseMeta;
+import org.pentaho.di.core.database.OracleDatabaseMeta;
+import org.pentaho.di.core.database.PostgreSQLDatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Keeps a snapshot of the tables and columns of each database connection, so table pickers do not have to browse the
+ * catalog live. A snapshot is read with one bulk query, written under the Kettle directory so it survives restarts,
+ * and refreshed in the background once it is older than its maximum age. Refreshes reload only the tables the
+ * database reports as changed when the dialect can tell, and everything otherwise.
+ */
+public class CatalogSnapshotManager {
+
+  public static final String ENABLED = "modeler.catalog-snapshot.enabled"; //$NON-NLS-1$
+
+  public static final String MAX_AGE = "modeler.catalog-snapshot.max-age-ms"; //$NON-NLS-1$
+
+  private static final long DEFAULT_MAX_AGE = 60 * 60 * 1000L;
+
+  // allowance for the difference between this clock and the database's when asking for changes since a refresh
+  private static final long CLOCK_MARGIN = 10 * 60 * 1000L;
+
+  // above this many changed tables an incremental refresh is no cheaper than a full one
+  private static final int MAX_INCREMENTAL_TABLES = 500;
+
+  private static final String FILE_HEADER = "#agilebi-catalog 1\t"; //$NON-NLS-1$
+
+  private static final String SYSTEM_SCHEMAS = "('information_schema', 'INFORMATION_SCHEMA', 'pg_catalog', 'mysql', " //$NON-NLS-1$
+      + "'performance_schema', 'sys')"; //$NON-NLS-1$
+
+  private static final String ORACLE_SYSTEM_SCHEMAS = "('SYS', 'SYSTEM', 'OUTLN', 'XDB', 'MDSYS', 'CTXSYS', " //$NON-NLS-1$
+      + "'ORDSYS', 'WMSYS', 'EXFSYS', 'DBSNMP', 'APPQOSSYS', 'OLAPSYS', 'LBACSYS', 'DVSYS', 'AUDSYS', 'GSMADMIN_INTERNAL')"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(CatalogSnapshotManager.class.getSimpleName());
+
+  private static CatalogSnapshotManager instance = null;
+
+  private final File directory;
+
+  private final long maxAge;
+
+  private final Map<String, Catalog> catalogs = new HashMap<String, Catalog>();
+
+  private final Set<String> refreshing = new HashSet<String>();
+
+  private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "agilebi-catalog-snapshot"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  public static synchronized CatalogSnapshotManager getInstance() {
+    if (instance == null) {
+      instance = new CatalogSnapshotManager(new File(Const.getKettleDirectory() + File.separator + "agile-bi" //$NON-NLS-1$
+          + File.separator + "catalogs"), AgileBiPlatformConfig.getInstance().getLong(MAX_AGE, DEFAULT_MAX_AGE)); //$NON-NLS-1$
+    }
+    return instance;
+  }
+
+  CatalogSnapshotManager(File directory, long maxAge) {
+    this.directory = directory;
+    this.maxAge = maxAge;
+  }
+
+  public boolean isEnabled() {
+    return AgileBiPlatformConfig.getInstance().getBoolean(ENABLED, true);
+  }
+
+  /**
+   * Returns the snapshot of the connection's catalog, from memory or disk, and starts a background refresh when there
+   * is none yet or it is older than the maximum age.
+   *
+   * @return the snapshot, possibly stale, or null if there is none yet or snapshots are disabled
+   */
+  public Catalog getCatalog(DatabaseMeta databaseMeta) {
+    if (!isEnabled()) {
+      return null;
+    }
+    String id;
+    try {
+      id = getId(databaseMeta);
+    } catch (KettleException e) {
+      return null;
+    }
+    Catalog catalog;
+    synchronized (this) {
+      catalog = catalogs.get(id);
+    }
+    if (catalog == null) {
+      catalog = read(getFile(id));
+      if (catalog != null) {
+        synchronized (this) {
+          catalogs.put(id, catalog);
+        }
+      }
+    }
+    if (catalog == null || System.currentTimeMillis() - catalog.getRefreshed() >= maxAge) {
+      refreshInBackground(databaseMeta);
+    }
+    return catalog;
+  }
+
+  /**
+   * Queues a refresh of the connection's snapshot unless one is already queued or running.
+   */
+  public void refreshInBackground(final DatabaseMeta databaseMeta) {
+    final String id;
+    try {
+      id = getId(databaseMeta);
+    } catch (KettleException e) {
+      log.logError("Could not identify connection " + databaseMeta.getName(), e); //$NON-NLS-1$
+      return;
+    }
+    synchronized (this) {
+      if (!refreshing.add(id)) {
+        return;
+      }
+    }
+    refresher.execute(new Runnable() {
+      public void run() {
+        try {
+          refresh(databaseMeta);
+        } catch (Exception e) {
+          log.logError("Could not snapshot the catalog of " + databaseMeta.getName(), e); //$NON-NLS-1$
+        } finally {
+          synchronized (CatalogSnapshotManager.this) {
+            refreshing.remove(id);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Refreshes the connection's snapshot now, incrementally if possible, and saves it.
+   */
+  public Catalog refresh(DatabaseMeta databaseMeta) throws KettleException {
+    String id = getId(databaseMeta);
+    Catalog previous;
+    synchronized (this) {
+      previous = catalogs.get(id);
+    }
+    if (previous == null) {
+      previous = read(getFile(id));
+    }
+
+    long started = System.currentTimeMillis();
+    Database database = new Database(databaseMeta);
+    Catalog catalog;
+    try {
+      database.connect();
+      Dialect dialect = Dialect.of(databaseMeta.getDatabaseInterface());
+      Catalog incremental = previous == null ? null
+          : refreshIncrementally(database.getConnection(), dialect, previous, started);
+      catalog = incremental != null ? incremental : loadAll(database.getConnection(), dialect, started);
+    } catch (SQLException e) {
+      throw new KettleException("Could not read the catalog of " + databaseMeta.getName(), e); //$NON-NLS-1$
+    } finally {
+      database.disconnect();
+    }
+
+    synchronized (this) {
+      catalogs.put(id, catalog);
+    }
+    write(getFile(id), catalog);
+    log.logDetailed("Catalog snapshot of " + databaseMeta.getName() + ": " + catalog.getTableCount() + " tables in " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        + (System.currentTimeMillis() - started) + " ms"); //$NON-NLS-1$
+    return catalog;
+  }
+
+  private Catalog loadAll(Connection connection, Dialect dialect, long refreshed) throws SQLException {
+    Catalog catalog = new Catalog(refreshed);
+    if (dialect.columnsQuery == null) {
+      ResultSet rs = connection.getMetaData().getColumns(null, null, "%", "%"); //$NON-NLS-1$ //$NON-NLS-2$
+      try {
+        readColumns(rs, catalog, 2, 3, 4, 6);
+      } finally {
+        rs.close();
+      }
+      return catalog;
+    }
+    PreparedStatement ps = connection.prepareStatement(dialect.columnsQuery);
+    try {
+      ps.setFetchSize(1000);
+      ResultSet rs = ps.executeQuery();
+      try {
+        readColumns(rs, catalog, 1, 2, 3, 4);
+      } finally {
+        rs.close();
+      }
+    } finally {
+      ps.close();
+    }
+    return catalog;
+  }
+
+  /**
+   * Re-reads the tables created or altered since the previous refresh, each with the dialect's columns query narrowed
+   * to exactly that table, and copies the others from the previous catalog.
+   *
+   * @return the refreshed catalog, or null if the dialect cannot report changes or too many tables changed
+   */
+  Catalog refreshIncrementally(Connection connection, Dialect dialect, Catalog previous, long refreshed)
+    throws SQLException {
+    if (dialect.changedTablesQuery == null || dialect.tableColumnsQuery == null) {
+      return null;
+    }
+    Set<String> changed = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    PreparedStatement ps = connection.prepareStatement(dialect.changedTablesQuery);
+    try {
+      ps.setTimestamp(1, new Timestamp(previous.getRefreshed() - CLOCK_MARGIN));
+      readTableKeys(ps.executeQuery(), changed);
+    } finally {
+      ps.close();
+    }
+    Set<String> current = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    ps = connection.prepareStatement(dialect.tablesQuery);
+    try {
+      ps.setFetchSize(1000);
+      readTableKeys(ps.executeQuery(), current);
+    } finally {
+      ps.close();
+    }
+    for (String key : current) {
+      if (!previous.tables.containsKey(key)) {
+        changed.add(key);
+      }
+    }
+    if (changed.size() > MAX_INCREMENTAL_TABLES) {
+      return null;
+    }
+
+    Catalog catalog = new Catalog(refreshed);
+    for (Map.Entry<String, Table> entry : previous.tables.entrySet()) {
+      if (current.contains(entry.getKey()) && !changed.contains(entry.getKey())) {
+        // a copy, the previous catalog may still be in use
+        catalog.tables.put(entry.getKey(), new Table(entry.getValue()));
+      }
+    }
+    ps = connection.prepareStatement(dialect.tableColumnsQuery);
+    try {
+      for (String key : changed) {
+        int separator = key.indexOf('\t');
+        ps.setString(1, key.substring(0, separator));
+        ps.setString(2, key.substring(separator + 1));
+        ResultSet rs = ps.executeQuery();
+        try {
+          readColumns(rs, catalog, 1, 2, 3, 4);
+        } finally {
+          rs.close();
+        }
+      }
+    } finally {
+      ps.close();
+    }
+    return catalog;
+  }
+
+  private void readColumns(ResultSet rs, Catalog catalog, int schemaIndex, int tableIndex, int columnIndex,
+      int typeIndex) throws SQLException {
+    while (rs.next()) {
+      catalog.add(Const.NVL(rs.getString(schemaIndex), ""), rs.getString(tableIndex), rs.getString(columnIndex), //$NON-NLS-1$
+          Const.NVL(rs.getString(typeIndex), "")); //$NON-NLS-1$
+    }
+  }
+
+  private void readTableKeys(ResultSet rs, Set<String> keys) throws SQLException {
+    try {
+      while (rs.next()) {
+        keys.add(Catalog.key(Const.NVL(rs.getString(1), ""), rs.getString(2))); //$NON-NLS-1$
+      }
+    } finally {
+      rs.close();
+    }
+  }
+
+  private String getId(DatabaseMeta databaseMeta) throws KettleException {
+    return "catalog_" + InstaviewDatasourceService.digest(InstaviewDatasourceService.getConnectionFingerprint(databaseMeta)); //$NON-NLS-1$
+  }
+
+  private File getFile(String id) {
+    return new File(directory, id + ".tsv.gz"); //$NON-NLS-1$
+  }
+
+  static Catalog read(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8")); //$NON-NLS-1$
+      String header = in.readLine();
+      if (header == null || !header.startsWith(FILE_HEADER)) {
+        return null;
+      }
+      Catalog catalog = new Catalog(Long.parseLong(header.substring(FILE_HEADER.length())));
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t", -1); //$NON-NLS-1$
+        if (fields.length == 4) {
+          catalog.add(fields[0], fields[1], fields[2], fields[3]);
+        }
+      }
+      return catalog;
+    } catch (Exception e) {
+      log.logError("Could not read the catalog snapshot " + file, e); //$NON-NLS-1$
+      return null;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  static void write(File file, Catalog catalog) {
+    file.getParentFile().mkdirs();
+    File temp = new File(file.getPath() + ".tmp"); //$NON-NLS-1$
+    Writer out = null;
+    try {
+      out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp)), "UTF-8")); //$NON-NLS-1$
+      out.write(FILE_HEADER + catalog.getRefreshed() + "\n"); //$NON-NLS-1$
+      for (Table table : catalog.tables.values()) {
+        for (Column column : table.columns) {
+          out.write(clean(table.schema) + '\t' + clean(table.name) + '\t' + clean(column.name) + '\t'
+              + clean(column.typeName) + '\n');
+        }
+      }
+      out.close();
+      out = null;
+      file.delete();
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not rename " + temp + " to " + file); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    } catch (IOException e) {
+      log.logError("Could not write the catalog snapshot " + file, e); //$NON-NLS-1$
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+  }
+
+  private static String clean(String value) {
+    return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  /**
+   * Bulk catalog queries of a database type. Each returns schema and table name first; the column queries add the
+   * column name and type, the changed tables query takes the time of the last refresh and the table columns query an
+   * exact schema and table name.
+   */
+  static class Dialect {
+
+    final String columnsQuery;
+
+    final String tableColumnsQuery;
+
+    final String tablesQuery;
+
+    final String changedTablesQuery;
+
+    Dialect(String columnsQuery, String tableColumnsQuery, String tablesQuery, String changedTablesQuery) {
+      this.columnsQuery = columnsQuery;
+      this.tableColumnsQuery = tableColumnsQuery;
+      this.tablesQuery = tablesQuery;
+      this.changedTablesQuery = changedTablesQuery;
+    }
+
+    static Dialect of(DatabaseInterface databaseInterface) {
+      if (databaseInterface instanceof OracleDatabaseMeta) {
+        String columns = "SELECT owner, table_name, column_name, data_type FROM all_tab_columns WHERE "; //$NON-NLS-1$
+        return new Dialect(
+            columns + "owner NOT IN " + ORACLE_SYSTEM_SCHEMAS + " ORDER BY owner, table_name, column_id", //$NON-NLS-1$ //$NON-NLS-2$
+            columns + "owner = ? AND table_name = ? ORDER BY column_id", //$NON-NLS-1$
+            "SELECT owner, object_name FROM all_objects WHERE object_type IN ('TABLE', 'VIEW') AND owner NOT IN " //$NON-NLS-1$
+                + ORACLE_SYSTEM_SCHEMAS,
+            "SELECT owner, object_name FROM all_objects WHERE object_type IN ('TABLE', 'VIEW') AND owner NOT IN " //$NON-NLS-1$
+                + ORACLE_SYSTEM_SCHEMAS + " AND last_ddl_time > ?"); //$NON-NLS-1$
+      }
+      String columns = "SELECT table_schema, table_name, column_name, data_type FROM information_schema.columns WHERE "; //$NON-NLS-1$
+      String columnsQuery = columns + "table_schema NOT IN " + SYSTEM_SCHEMAS //$NON-NLS-1$
+          + " ORDER BY table_schema, table_name, ordinal_position"; //$NON-NLS-1$
+      String tableColumnsQuery = columns + "table_schema = ? AND table_name = ? ORDER BY ordinal_position"; //$NON-NLS-1$
+      String tablesQuery = "SELECT table_schema, table_name FROM information_schema.tables WHERE table_schema NOT IN " //$NON-NLS-1$
+          + SYSTEM_SCHEMAS;
+      if (databaseInterface instanceof MySQLDatabaseMeta) {
+        // MySQL resets create_time when ALTER TABLE rebuilds a table
+        return new Dialect(columnsQuery, tableColumnsQuery, tablesQuery, tablesQuery + " AND create_time > ?"); //$NON-NLS-1$
+      }
+      if (databaseInterface instanceof PostgreSQLDatabaseMeta || databaseInterface instanceof MSSQLServerDatabaseMeta
+          || databaseInterface instanceof H2DatabaseMeta) {
+        return new Dialect(columnsQuery, tableColumnsQuery, tablesQuery, null);
+      }
+      // DatabaseMetaData.getColumns for all tables at once
+      return new Dialect(null, null, null, null);
+    }
+
+  }
+
+  /**
+   * The tables and columns of one connection at the time of a refresh.
+   */
+  public static class Catalog {
+
+    private final long refreshed;
+
+    // schema TAB table -> table, sorted
+    private final TreeMap<String, Table> tables = new TreeMap<String, Table>(String.CASE_INSENSITIVE_ORDER);
+
+    Catalog(long refreshed) {
+      this.refreshed = refreshed;
+    }
+
+    static String key(String schema, String table) {
+      return schema + '\t' + table;
+    }
+
+    void add(String schema, String table, String column, String typeName) {
+      String key = key(schema, table);
+      Table t = tables.get(key);
+      if (t == null) {
+        t = new Table(schema, table);
+        tables.put(key, t);
+      }
+      t.columns.add(new Column(column, typeName));
+    }
+
+    public long getRefreshed() {
+      return refreshed;
+    }
+
+    public int getTableCount() {
+      return tables.size();
+    }
+
+    /**
+     * @return all tables, ordered by schema and name
+     */
+    public List<Table> getTables() {
+      return Collections.unmodifiableList(new ArrayList<Table>(tables.values()));
+    }
+
+    /**
+     * @return the table, or null if the snapshot does not have it
+     */
+    public Table getTable(String schema, String table) {
+      return tables.get(key(Const.NVL(schema, ""), table)); //$NON-NLS-1$
+    }
+
+  }
+
+  public static class Table {
+
+    private final String schema;
+
+    private final String name;
+
+    private final List<Column> columns = new ArrayList<Column>();
+
+    Table(String schema, String name) {
+      this.schema = schema;
+      this.name = name;
+    }
+
+    Table(Table table) {
+      this(table.schema, table.name);
+      columns.addAll(table.columns);
+    }
+
+    /**
+     * @return the schema, empty for databases without schemas
+     */
+    public String getSchema() {
+      return schema;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public List<Column> getColumns() {
+      return Collections.unmodifiableList(columns);
+    }
+
+  }
+
+  public static class Column {
+
+    private final String name;
+
+    private final String typeName;
+
+    Column(String name, String typeName) {
+      this.name = name;
+      this.typeName = typeName;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getTypeName() {
+      return typeName;
+    }
+
+  }
+
+}
@@ -0,0 +1,390 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Runs the embedded BI platform in a child JVM with its own heap and GC settings, so Mondrian cache growth, GC
+ * pauses or an OutOfMemoryError in a runaway query do not stall or kill Spoon. The child is started with
+ * {@link PlatformProcess} and the class path of this plugin, its health is checked over the
+ * {@link PlatformControlHandler} commands, and it is restarted when it dies or stops answering. The child's calls to
+ * the Instaview helper are run against the helper registered in Spoon, see {@link RelayedInstaviewHelper}.
+ */
+public class ChildJvmPlatformServer {
+
+  /**
+   * Notified each time the child platform is listening, after the first start and after every restart.
+   */
+  public interface Listener {
+    void started(int port);
+  }
+
+  private static LogChannelInterface log = new LogChannel(ChildJvmPlatformServer.class.getSimpleName());
+
+  private final String hostname;
+
+  private final int firstPort;
+
+  private final int lastPort;
+
+  private final String token = UUID.randomUUID().toString();
+
+  private final AgileBiPlatformConfig config = AgileBiPlatformConfig.getInstance();
+
+  private final List<Listener> listeners = new ArrayList<Listener>();
+
+  private volatile Process process;
+
+  private volatile int port = -1;
+
+  private volatile boolean stopped;
+
+  private Thread monitor;
+
+  private final ExecutorService helperCalls = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "agilebi-platform-helper-calls"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  public ChildJvmPlatformServer(String hostname, int firstPort, int lastPort) {
+    this.hostname = hostname;
+    this.firstPort = firstPort;
+    this.lastPort = lastPort;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Starts the child JVM and waits until it listens, then starts the health checks.
+   */
+  public synchronized void start() throws Exception {
+    launch(firstPort, lastPort);
+    monitor = new Thread(new Runnable() {
+      public void run() {
+        monitorHealth();
+      }
+    }, "agilebi-platform-monitor"); //$NON-NLS-1$
+    monitor.setDaemon(true);
+    monitor.start();
+  }
+
+  public synchronized void stop() {
+    stopped = true;
+    if (monitor != null) {
+      monitor.interrupt();
+    }
+    destroy();
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public boolean isRunning() {
+    Process current = process;
+    return current != null && current.isAlive();
+  }
+
+  /**
+   * Sends a {@link PlatformControlHandler} command to the child and returns its answer.
+   *
+   * @param command the command, e.g. <code>initialize</code>
+   * @param parameter name and value pairs of request parameters
+   */
+  public String sendCommand(String command, String... parameter) throws IOException {
+    StringBuilder path = new StringBuilder(PlatformControlHandler.CONTEXT_PATH).append('/').append(command);
+    for (int i = 0; i + 1 < parameter.length; i += 2) {
+      path.append(i == 0 ? '?' : '&').append(URLEncoder.encode(parameter[i], Const.XML_ENCODING)).append('=')
+          .append(URLEncoder.encode(parameter[i + 1], Const.XML_ENCODING));
+    }
+    HttpURLConnection connection = (HttpURLConnection) new URL("http", hostname, port, path.toString()).openConnection(); //$NON-NLS-1$
+    connection.setRequestProperty(PlatformControlHandler.TOKEN_HEADER, token);
+    connection.setConnectTimeout(5000);
+    connection.setReadTimeout(config.getInt("server.child-jvm.command-timeout-ms", 300000)); //$NON-NLS-1$
+    InputStream in = null;
+    try {
+      in = connection.getInputStream();
+      return IOUtils.toString(in, Const.XML_ENCODING);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private void launch(int first, int last) throws Exception {
+    List<String> command = new ArrayList<String>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    for (String option : config.getString("server.child-jvm.options", "-Xmx1024m").trim().split("\\s+")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      if (option.length() > 0) {
+        command.add(option);
+      }
+    }
+    for (String property : new String[] { "KETTLE_HOME", "file.encoding", "java.library.path" }) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      if (System.getProperty(property) != null) {
+        command.add("-D" + property + "=" + System.getProperty(property)); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    command.add("-cp"); //$NON-NLS-1$
+    command.add(getClassPath());
+    command.add(PlatformProcess.class.getName());
+    command.add(hostname);
+    command.add(String.valueOf(first));
+    command.add(String.valueOf(last));
+
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectErrorStream(true);
+    final Process newProcess = builder.start();
+    // on standard input rather than the command line, where other local users could read it
+    OutputStream toChild = newProcess.getOutputStream();
+    toChild.write((token + "\n").getBytes(Const.XML_ENCODING)); //$NON-NLS-1$
+    toChild.flush();
+    final CountDownLatch listening = new CountDownLatch(1);
+    final int[] boundPort = { -1 };
+
+    Thread output = new Thread(new Runnable() {
+      public void run() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(newProcess.getInputStream()));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (boundPort[0] < 0 && line.startsWith(PlatformProcess.PORT_LINE_PREFIX)) {
+              boundPort[0] = Integer.parseInt(line.substring(PlatformProcess.PORT_LINE_PREFIX.length()).trim());
+              listening.countDown();
+            } else if (line.startsWith(RelayedInstaviewHelper.LINE_PREFIX)) {
+              relayHelperCall(RelayedInstaviewHelper.parse(line));
+            } else {
+              log.logBasic(line);
+            }
+          }
+        } catch (IOException e) {
+          // process ended
+        } finally {
+          IOUtils.closeQuietly(reader);
+          listening.countDown();
+        }
+      }
+    }, "agilebi-platform-output"); //$NON-NLS-1$
+    output.setDaemon(true);
+    output.start();
+
+    long timeout = config.getLong("server.child-jvm.start-timeout-ms", 120000L); //$NON-NLS-1$
+    if (!listening.await(timeout, TimeUnit.MILLISECONDS) || boundPort[0] < 0) {
+      newProcess.destroy();
+      throw new IOException("The BI platform child JVM did not start listening within " + timeout //$NON-NLS-1$
+          + "ms, see the log above for its output. Command: " + command); //$NON-NLS-1$
+    }
+    process = newProcess;
+    port = boundPort[0];
+    log.logBasic("BI platform child JVM listening on " + hostname + ":" + port); //$NON-NLS-1$ //$NON-NLS-2$
+    for (Listener listener : listeners) {
+      listener.started(port);
+    }
+  }
+
+  /**
+   * Passes an Instaview helper call of the child on to the helper registered in Spoon. Calls run one after the other
+   * on their own thread, so a slow helper does not hold up reading the child's output.
+   */
+  private void relayHelperCall(final String[] call) {
+    helperCalls.execute(new Runnable() {
+      public void run() {
+        IInstaviewHelper helper = InstaviewHelper.getInstaviewHelper();
+        if (!RelayedInstaviewHelper.RESTART_DATASTORE.equals(call[0])) {
+          if (helper != null) {
+            try {
+              RelayedInstaviewHelper.dispatch(helper, call);
+            } catch (Exception e) {
+              log.logError("Instaview helper call " + call[0] + " of the BI platform child JVM failed", e); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+          }
+          return;
+        }
+        String value = "false"; //$NON-NLS-1$
+        String error = null;
+        try {
+          value = String.valueOf(helper != null && helper.restartDatastore());
+        } catch (Exception e) {
+          log.logError("Could not restart the Instaview datastore for the BI platform child JVM", e); //$NON-NLS-1$
+          error = String.valueOf(e.getMessage());
+        }
+        try {
+          if (error == null) {
+            sendCommand("helper-result", "call", call[1], "value", value); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          } else {
+            sendCommand("helper-result", "call", call[1], "value", value, "error", error); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+          }
+        } catch (IOException e) {
+          log.logError("Could not answer the datastore restart of the BI platform child JVM", e); //$NON-NLS-1$
+        }
+      }
+    });
+  }
+
+  private void monitorHealth() {
+    long interval = config.getLong("server.child-jvm.health-interval-ms", 10000L); //$NON-NLS-1$
+    int maxFailures = Math.max(1, config.getInt("server.child-jvm.health-failures", 3)); //$NON-NLS-1$
+    int failures = 0;
+    int restarts = 0;
+    while (!stopped) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (stopped) {
+        return;
+      }
+      boolean alive = isRunning();
+      if (alive) {
+        try {
+          alive = "ok".equals(sendCommand("health")); //$NON-NLS-1$ //$NON-NLS-2$
+        } catch (IOException e) {
+          alive = false;
+        }
+        failures = alive ? 0 : failures + 1;
+        if (failures < maxFailures) {
+          continue;
+        }
+        log.logError("BI platform child JVM failed " + failures + " health checks, restarting it"); //$NON-NLS-1$ //$NON-NLS-2$
+      } else {
+        log.logError("BI platform child JVM has exited, restarting it"); //$NON-NLS-1$
+      }
+      failures = 0;
+      synchronized (this) {
+        if (stopped) {
+          return;
+        }
+        destroy();
+      }
+      try {
+        // back off when the child keeps failing
+        Thread.sleep(Math.min(60000L, 1000L << Math.min(restarts++, 6)));
+      } catch (InterruptedException e) {
+        return;
+      }
+      synchronized (this) {
+        if (stopped) {
+          return;
+        }
+        try {
+          restart();
+        } catch (Exception e) {
+          log.logError("Could not restart the BI platform child JVM", e); //$NON-NLS-1$
+        }
+      }
+    }
+  }
+
+  /**
+   * Brings the child back on the port it had, so open analyzer tabs keep working, or anywhere in the range.
+   */
+  private void restart() throws Exception {
+    try {
+      launch(port, port);
+    } catch (IOException e) {
+      launch(firstPort, lastPort);
+    }
+  }
+
+  private void destroy() {
+    Process current = process;
+    process = null;
+    if (current != null) {
+      // closing standard input lets the child stop its server cleanly
+      IOUtils.closeQuietly(current.getOutputStream());
+      try {
+        if (!current.waitFor(10, TimeUnit.SECONDS)) {
+          current.destroy();
+        }
+      } catch (InterruptedException e) {
+        current.destroy();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * The system class path plus every jar the plugin's class loader and its parents were given, so the child sees the
+   * same Kettle, platform and plugin classes as Spoon.
+   */
+  private String getClassPath() {
+    Set<String> entries = new LinkedHashSet<String>();
+    String extra = config.getString("server.child-jvm.classpath", ""); //$NON-NLS-1$ //$NON-NLS-2$
+    for (String entry : extra.split(File.pathSeparator)) {
+      if (entry.trim().length() > 0) {
+        entries.add(entry.trim());
+      }
+    }
+    for (ClassLoader loader = getClass().getClassLoader(); loader != null; loader = loader.getParent()) {
+      if (loader instanceof URLClassLoader) {
+        for (URL url : ((URLClassLoader) loader).getURLs()) {
+          if ("file".equals(url.getProtocol())) { //$NON-NLS-1$
+            try {
+              entries.add(new File(url.toURI()).getPath());
+            } catch (Exception e) {
+              entries.add(url.getPath());
+            }
+          }
+        }
+      }
+    }
+    for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) { //$NON-NLS-1$ //$NON-NLS-2$
+      if (entry.length() > 0) {
+        entries.add(entry);
+      }
+    }
+    StringBuilder classPath = new StringBuilder();
+    for (String entry : entries) {
+      if (classPath.length() > 0) {
+        classPath.append(File.pathSeparator);
+      }
+      classPath.append(entry);
+    }
+    return classPath.toString();
+  }
+
+}
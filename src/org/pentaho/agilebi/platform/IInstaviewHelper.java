@@ -20,5 +20,39 @@ package org.pentaho.agilebi.platform;
 public interface IInstaviewHelper {
 
 	public void connectionMade();
-	
+
+	/**
+	 * Called every instaview.datastore.restart-threshold connections handed out to Mondrian, giving the helper a
+	 * chance to bounce its datastore. The Instaview pools are recycled when this returns true.
+	 * 
+	 * @return true if the datastore was restarted
+	 */
+	public default boolean restartDatastore() throws Exception {
+		return false;
+	}
+
+	/**
+	 * Called after a new physical connection has been opened for the pool of the given connection fingerprint.
+	 */
+	public default void connectionCreated(String poolKey, long millis) {
+	}
+
+	/**
+	 * Called after a connection has been borrowed, with the time spent waiting for the pool.
+	 */
+	public default void connectionBorrowed(String poolKey, long waitMillis) {
+	}
+
+	/**
+	 * Called when a pooled connection fails validation and is discarded.
+	 */
+	public default void validationFailed(String poolKey) {
+	}
+
+	/**
+	 * Called after each statement executed through an Instaview data source.
+	 */
+	public default void queryExecuted(String dsName, long millis, boolean failed) {
+	}
+
 }
@@ -0,0 +1,103 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.DatabaseMeta;
+
+/**
+ * Per-dialect connection settings that let large Mondrian result sets stream from the database instead of being
+ * materialized in the Spoon heap.
+ */
+class InstaviewConnectionCustomizer {
+
+  public static final String FETCH_SIZE = "instaview.connection.fetch-size"; //$NON-NLS-1$
+
+  public static final String READ_ONLY = "instaview.connection.read-only"; //$NON-NLS-1$
+
+  private static final int DEFAULT_FETCH_SIZE = 1000;
+
+  private final DatabaseMeta databaseMeta;
+
+  private final String pluginId;
+
+  private final int fetchSize;
+
+  private final boolean readOnly;
+
+  InstaviewConnectionCustomizer(DatabaseMeta databaseMeta) {
+    AgileBiPlatformConfig platformConfig = AgileBiPlatformConfig.getInstance();
+    this.pluginId = Const.NVL(databaseMeta.getPluginId(), "").toUpperCase(); //$NON-NLS-1$
+    this.fetchSize = platformConfig.getInt(FETCH_SIZE, DEFAULT_FETCH_SIZE);
+    this.readOnly = platformConfig.getBoolean(READ_ONLY, true);
+    this.databaseMeta = withFetchOptions(databaseMeta);
+  }
+
+  /**
+   * @return the DatabaseMeta to open connections with, carrying the driver options that set the fetch size
+   */
+  DatabaseMeta getDatabaseMeta() {
+    return databaseMeta;
+  }
+
+  boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * The PostgreSQL driver only uses a server-side cursor, and so honors the fetch size, outside of autocommit mode.
+   */
+  boolean isAutoCommit() {
+    return !(fetchSize > 0 && isPostgres());
+  }
+
+  void customize(Connection connection) throws SQLException {
+    connection.setAutoCommit(isAutoCommit());
+    if (readOnly) {
+      connection.setReadOnly(true);
+    }
+  }
+
+  private boolean isPostgres() {
+    return pluginId.equals("POSTGRESQL") || pluginId.equals("GREENPLUM"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private DatabaseMeta withFetchOptions(DatabaseMeta original) {
+    if (fetchSize <= 0) {
+      return original;
+    }
+    String size = Integer.toString(fetchSize);
+    DatabaseMeta meta = (DatabaseMeta) original.clone();
+    if (pluginId.equals("MYSQL") || pluginId.equals("MARIADB")) { //$NON-NLS-1$ //$NON-NLS-2$
+      // without a cursor the MySQL driver reads the whole result set into memory
+      meta.addExtraOption(pluginId, "useCursorFetch", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+      meta.addExtraOption(pluginId, "defaultFetchSize", size); //$NON-NLS-1$
+    } else if (isPostgres()) {
+      meta.addExtraOption(pluginId, "defaultRowFetchSize", size); //$NON-NLS-1$
+    } else if (pluginId.equals("ORACLE")) { //$NON-NLS-1$
+      meta.addExtraOption(pluginId, "defaultRowPrefetch", size); //$NON-NLS-1$
+    } else {
+      return original;
+    }
+    return meta;
+  }
+
+}
@@ -0,0 +1,100 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.pentaho.di.core.database.DatabaseMeta;
+
+/**
+ * A connection pool for one physical database, shared by every Instaview data source that points at it.
+ */
+class InstaviewConnectionPool {
+
+  private final String key;
+
+  private final DatabaseMeta databaseMeta;
+
+  private final GenericObjectPool pool;
+
+  private final PoolingDataSource dataSource;
+
+  private final InstaviewPoolMetrics metrics;
+
+  private volatile long lastBorrowed = System.currentTimeMillis();
+
+  InstaviewConnectionPool(String key, DatabaseMeta databaseMeta, GenericObjectPool pool,
+      InstaviewPoolMetrics metrics) {
+    this.key = key;
+    this.databaseMeta = databaseMeta;
+    this.pool = pool;
+    this.metrics = metrics;
+    this.dataSource = new PoolingDataSource(pool);
+  }
+
+  Connection getConnection() throws SQLException {
+    long start = System.currentTimeMillis();
+    lastBorrowed = start;
+    Connection connection = dataSource.getConnection();
+    metrics.borrowed(System.currentTimeMillis() - start);
+    return connection;
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  DatabaseMeta getDatabaseMeta() {
+    return databaseMeta;
+  }
+
+  GenericObjectPool getPool() {
+    return pool;
+  }
+
+  InstaviewPoolMetrics getMetrics() {
+    return metrics;
+  }
+
+  long getLastBorrowed() {
+    return lastBorrowed;
+  }
+
+  /**
+   * @return true if no connection is checked out and nothing has been borrowed for at least idleMillis
+   */
+  boolean isIdle(long now, long idleMillis) {
+    return pool.getNumActive() == 0 && now - lastBorrowed >= idleMillis;
+  }
+
+  /**
+   * Closes the pool and the idle JDBC connections in it. Connections still checked out are closed when returned.
+   */
+  void close() {
+    metrics.unregister();
+    try {
+      pool.close();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -20,54 +20,169 @@ package org.pentaho.agilebi.platform;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.dbcp.ConnectionFactory;
-import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDriver;
-import org.apache.commons.pool.KeyedObjectPoolFactory;
-import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.pool.impl.GenericObjectPool;
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.Database;
 import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleDatabaseException;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.metadata.model.Domain;
 import org.pentaho.metadata.model.SqlPhysicalModel;
+import org.pentaho.metadata.model.SqlPhysicalTable;
 import org.pentaho.metadata.util.ThinModelConverter;
 import org.pentaho.metadata.util.XmiParser;
 import org.pentaho.platform.api.data.DBDatasourceServiceException;
 import org.pentaho.platform.api.data.IDBDatasourceService;
 
-public class InstaviewDatasourceService implements IDBDatasourceService {
+/**
+ * Serves the XMI files opened in Spoon as JDBC data sources. Each distinct physical connection (driver, URL and user)
+ * gets its own connection pool; XMIs that point at the same database share that pool.
+ */
+public class InstaviewDatasourceService implements IDBDatasourceService, InstaviewSnapshotManager.Listener {
 
-	private GenericObjectPool gPool = new GenericObjectPool();
+  public static final String POOL_MAX_ACTIVE = "instaview.pool.max-active"; //$NON-NLS-1$
 
-	private KeyedObjectPoolFactory kopf =new GenericKeyedObjectPoolFactory(null, 8);
+  public static final String POOL_MAX_IDLE = "instaview.pool.max-idle"; //$NON-NLS-1$
 
-	private Set<String> knownPools = new HashSet<String>();
-	
-	private int connectionCount = 0;
-	
-	private Map<String,DatabaseMeta> databaseMetaMap = new HashMap<String,DatabaseMeta>();
-	
-	public InstaviewDatasourceService() {
-		
-	}
-	
-  public void clearCache() {
-    // TODO impl cache
+  public static final String POOL_INITIAL_SIZE = "instaview.pool.initial-size"; //$NON-NLS-1$
+
+  public static final String POOL_IDLE_TIMEOUT = "instaview.pool.idle-timeout-ms"; //$NON-NLS-1$
+
+  public static final String POOL_REAPER_INTERVAL = "instaview.pool.reaper-interval-ms"; //$NON-NLS-1$
+
+  public static final String POOL_VALIDATION_IDLE = "instaview.pool.validation-idle-ms"; //$NON-NLS-1$
+
+  public static final String POOL_VALIDATION_TIMEOUT = "instaview.pool.validation-timeout-s"; //$NON-NLS-1$
+
+  public static final String POOL_MAX_LIFETIME = "instaview.pool.max-lifetime-ms"; //$NON-NLS-1$
+
+  public static final String POOL_MAX_USES = "instaview.pool.max-uses"; //$NON-NLS-1$
+
+  public static final String STATEMENT_CACHE_SIZE = "instaview.statement-cache.size"; //$NON-NLS-1$
+
+  public static final String DATASTORE_RESTART_THRESHOLD = "instaview.datastore.restart-threshold"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(InstaviewDatasourceService.class.getSimpleName());
+
+  private static final int DEFAULT_MAX_ACTIVE = 8;
+
+  private static final int DEFAULT_INITIAL_SIZE = 5;
+
+  private static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000L;
+
+  private static final long DEFAULT_REAPER_INTERVAL = 60 * 1000L;
+
+  private static final long DEFAULT_VALIDATION_IDLE = 30 * 1000L;
+
+  private static final int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+  private static final long DEFAULT_MAX_LIFETIME = 30 * 60 * 1000L;
+
+  private static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
+  /** connections handed out since the Instaview datastore was last restarted */
+  private AtomicInteger borrowCount = new AtomicInteger();
+
+  /** connection fingerprint -> pool */
+  private Map<String, InstaviewConnectionPool> pools = new HashMap<String, InstaviewConnectionPool>();
+
+  /** dsName -> connection fingerprint */
+  private Map<String, String> poolKeys = new HashMap<String, String>();
+
+  private Map<String, DatabaseMeta> databaseMetaMap = new HashMap<String, DatabaseMeta>();
+
+  private Map<String, InstaviewQueryMetrics> queryMetrics = new HashMap<String, InstaviewQueryMetrics>();
+
+  /** dsName -> XMI read in progress, so concurrent first requests share one build */
+  private ConcurrentMap<String, FutureTask<InstaviewConnectionPool>> pendingBuilds =
+      new ConcurrentHashMap<String, FutureTask<InstaviewConnectionPool>>();
+
+  /** runs pool warm-up and the idle pool reaper */
+  private ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "Instaview pool maintenance"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private boolean reaperStarted = false;
+
+  public InstaviewDatasourceService() {
+    InstaviewSnapshotManager.getInstance().addListener(this);
   }
 
-  public void clearDataSource(String dsName) {
-    // TODO impl cache
+  /**
+   * A snapshot was created or dropped, so some XMIs now resolve to a different database.
+   */
+  public void snapshotsChanged() {
+    clearCache();
+  }
+
+  /**
+   * A snapshot was refreshed in place, so results cached from it are stale.
+   */
+  public void tableRefreshed(String tableName) {
+    InstaviewResultCache.getInstance().invalidateTable(tableName);
+  }
+
+  /**
+   * Forgets every data source, closes all pools along with their connections and empties the result cache.
+   */
+  public synchronized void clearCache() {
+    for (InstaviewConnectionPool pool : pools.values()) {
+      pool.close();
+    }
+    pools.clear();
+    poolKeys.clear();
+    databaseMetaMap.clear();
+    for (InstaviewQueryMetrics metrics : queryMetrics.values()) {
+      metrics.unregister();
+    }
+    queryMetrics.clear();
+    InstaviewResultCache.getInstance().clear();
+  }
+
+  /**
+   * Forgets a data source. Its pool is closed once no other data source shares it.
+   */
+  public synchronized void clearDataSource(String dsName) {
+    String poolKey = poolKeys.remove(dsName);
+    databaseMetaMap.remove(dsName);
+    InstaviewQueryMetrics metrics = queryMetrics.remove(dsName);
+    if (metrics != null) {
+      metrics.unregister();
+    }
+    if (poolKey != null && !poolKeys.containsValue(poolKey)) {
+      InstaviewConnectionPool pool = pools.remove(poolKey);
+      if (pool != null) {
+        pool.close();
+      }
+    }
   }
 
   public String getDSBoundName(String dsName) throws DBDatasourceServiceException {
@@ -79,181 +194,411 @@ public class InstaviewDatasourceService implements IDBDatasourceService {
   }
 
   public DataSource getDataSource(String dsName) throws DBDatasourceServiceException {
+    getPool(dsName);
+    return new DatabaseMetaDataSource(dsName);
+  }
+
+  /**
+   * Returns the pool serving an XMI, reading the XMI and building the pool as needed. Concurrent first requests for
+   * the same XMI wait for a single build. Pools closed by the idle reaper are rebuilt from the remembered DatabaseMeta.
+   */
+  InstaviewConnectionPool getPool(final String dsName) throws DBDatasourceServiceException {
+    InstaviewConnectionPool pool = lookupPool(dsName);
+    if (pool != null) {
+      return pool;
+    }
+
+    FutureTask<InstaviewConnectionPool> build = pendingBuilds.get(dsName);
+    if (build == null) {
+      FutureTask<InstaviewConnectionPool> newBuild =
+          new FutureTask<InstaviewConnectionPool>(new Callable<InstaviewConnectionPool>() {
+            public InstaviewConnectionPool call() throws Exception {
+              return registerPool(dsName, loadDatabaseMeta(dsName));
+            }
+          });
+      build = pendingBuilds.putIfAbsent(dsName, newBuild);
+      if (build == null) {
+        build = newBuild;
+        build.run();
+      }
+    }
+
+    try {
+      return build.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DBDatasourceServiceException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof DBDatasourceServiceException) {
+        throw (DBDatasourceServiceException) e.getCause();
+      }
+      throw new DBDatasourceServiceException(e.getCause());
+    } finally {
+      pendingBuilds.remove(dsName, build);
+    }
+  }
 
-	  DatabaseMeta databaseMeta = databaseMetaMap.get(dsName);
-	  
-	  if( knownPools.contains(dsName)) {
-		  try {
-				DatabaseMetaDataSource dataSource = new DatabaseMetaDataSource(dsName);
-				return dataSource;
-		} catch (Exception e) {
-			throw new DBDatasourceServiceException(e);
-		}
-	  }
-
-    // nothing in the pool so create a new pool
+  /**
+   * @return the pool of an XMI that has already been read, rebuilding it if it was reaped; null for unknown XMIs
+   */
+  private synchronized InstaviewConnectionPool lookupPool(String dsName) {
+    DatabaseMeta databaseMeta = databaseMetaMap.get(dsName);
+    if (databaseMeta == null) {
+      return null;
+    }
+    return getOrCreatePool(poolKeys.get(dsName), databaseMeta);
+  }
+
+  private synchronized InstaviewConnectionPool registerPool(String dsName, DatabaseMeta databaseMeta)
+    throws DBDatasourceServiceException {
+    String poolKey;
+    try {
+      poolKey = getConnectionFingerprint(databaseMeta);
+    } catch (KettleDatabaseException e) {
+      throw new DBDatasourceServiceException(e);
+    }
+    poolKeys.put(dsName, poolKey);
+    databaseMetaMap.put(dsName, databaseMeta);
+    if (!queryMetrics.containsKey(dsName)) {
+      InstaviewQueryMetrics metrics = new InstaviewQueryMetrics(dsName);
+      metrics.register();
+      queryMetrics.put(dsName, metrics);
+    }
+    return getOrCreatePool(poolKey, databaseMeta);
+  }
+
+  private InstaviewConnectionPool getOrCreatePool(String poolKey, DatabaseMeta databaseMeta) {
+    InstaviewConnectionPool pool = pools.get(poolKey);
+    if (pool == null) {
+      InstaviewPoolMetrics metrics = new InstaviewPoolMetrics(poolKey);
+      pool = new InstaviewConnectionPool(poolKey, databaseMeta, createPool(databaseMeta, metrics), metrics);
+      metrics.register();
+      pools.put(poolKey, pool);
+      warmUp(pool.getPool(), getInitialSize(databaseMeta));
+      startReaper();
+    }
+    return pool;
+  }
+
+  private DatabaseMeta loadDatabaseMeta(String dsName) throws DBDatasourceServiceException {
     Domain domain = null;
+    FileInputStream fis = null;
     try {
       XmiParser parser = new XmiParser();
-      FileInputStream fis = new FileInputStream(new File(dsName));
+      fis = new FileInputStream(new File(dsName));
       domain = parser.parseXmi(fis);
     } catch (Exception e) {
       throw new DBDatasourceServiceException(e);
+    } finally {
+      IOUtils.closeQuietly(fis);
     }
 
-    if (domain.getPhysicalModels().size() == 0 || 
+    if (domain.getPhysicalModels().size() == 0 ||
         !(domain.getPhysicalModels().get(0) instanceof SqlPhysicalModel)) {
       throw new DBDatasourceServiceException("No SQL Physical Model Available");
-      
+
     }
-    
-    SqlPhysicalModel model = (SqlPhysicalModel)domain.getPhysicalModels().get(0);
-    
-    databaseMeta = ThinModelConverter.convertToLegacy(model.getId(), model.getDatasource());
-	
-    ConnectionFactory cf = new DatabaseMetaConnectionFactory(databaseMeta);
 
+    SqlPhysicalModel model = (SqlPhysicalModel) domain.getPhysicalModels().get(0);
+
+    DatabaseMeta databaseMeta = ThinModelConverter.convertToLegacy(model.getId(), model.getDatasource());
+
+    // point Mondrian at the local copy of the table when there is one
+    if (!model.getPhysicalTables().isEmpty()) {
+      SqlPhysicalTable table = model.getPhysicalTables().get(0);
+      try {
+        DatabaseMeta snapshotMeta = InstaviewSnapshotManager.getInstance().getSnapshotDatabaseMeta(databaseMeta,
+            table.getTargetSchema(), table.getTargetTable());
+        if (snapshotMeta != null) {
+          return snapshotMeta;
+        }
+      } catch (KettleException e) {
+        throw new DBDatasourceServiceException(e);
+      }
+    }
+    return databaseMeta;
+  }
+
+  /**
+   * Fills a new pool up to its initial size on the maintenance thread, so the request that built the pool only waits
+   * for the one connection it uses. Never goes past maxIdle, where the pool would destroy the added connections again.
+   */
+  private void warmUp(final GenericObjectPool pool, final int initialSize) {
+    final int target = getWarmUpTarget(initialSize, pool.getMaxIdle());
+    if (target <= 0) {
+      return;
+    }
+    maintenance.execute(new Runnable() {
+      public void run() {
+        try {
+          // bounded as well, connections may be returned and destroyed while this runs
+          for (int i = 0; i < target && pool.getNumActive() + pool.getNumIdle() < target; i++) {
+            pool.addObject();
+          }
+        } catch (IllegalStateException e) {
+          // the pool was closed before it was warmed up
+        } catch (Exception e) {
+          log.logError("Could not warm up an Instaview connection pool", e); //$NON-NLS-1$
+        }
+      }
+    });
+  }
+
+  /**
+   * @param maxIdle the pool's maxIdle, negative for no limit
+   */
+  static int getWarmUpTarget(int initialSize, int maxIdle) {
+    return maxIdle < 0 ? initialSize : Math.min(initialSize, maxIdle);
+  }
+
+  private void startReaper() {
+    if (reaperStarted) {
+      return;
+    }
+    reaperStarted = true;
+    AgileBiPlatformConfig platformConfig = AgileBiPlatformConfig.getInstance();
+    final long idleTimeout = platformConfig.getLong(POOL_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+    if (idleTimeout <= 0) {
+      return;
+    }
+    long interval = platformConfig.getLong(POOL_REAPER_INTERVAL, Math.min(DEFAULT_REAPER_INTERVAL, idleTimeout));
+    maintenance.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        reapIdlePools(idleTimeout);
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Closes the pools nobody has borrowed from in idleMillis. The data sources stay registered, so the next borrow
+   * rebuilds the pool without re-reading the XMI.
+   */
+  synchronized void reapIdlePools(long idleMillis) {
+    long now = System.currentTimeMillis();
+    Iterator<InstaviewConnectionPool> it = pools.values().iterator();
+    while (it.hasNext()) {
+      InstaviewConnectionPool pool = it.next();
+      if (pool.isIdle(now, idleMillis)) {
+        it.remove();
+        pool.close();
+      }
+    }
+  }
+
+  /**
+   * Builds a pool for one physical connection. The size limits come from the pooling settings of the connection
+   * itself when it has any, otherwise from the plugin configuration. The pool starts empty, see
+   * {@link #warmUp(GenericObjectPool, int)}.
+   */
+  private GenericObjectPool createPool(DatabaseMeta databaseMeta, InstaviewPoolMetrics metrics) {
+    AgileBiPlatformConfig platformConfig = AgileBiPlatformConfig.getInstance();
+    int maxActive = platformConfig.getInt(POOL_MAX_ACTIVE, DEFAULT_MAX_ACTIVE);
+    if (databaseMeta.isUsingConnectionPool()) {
+      maxActive = databaseMeta.getMaximumPoolSize();
+    }
+
+    GenericObjectPool pool = new GenericObjectPool();
     GenericObjectPool.Config config = new GenericObjectPool.Config();
     config.testOnBorrow = true;
-    gPool.setConfig(config);
-
-	  PoolableConnectionFactory pcf =  new PoolableConnectionFactory(cf,
-            gPool,
-            kopf,
-            "select 1",
-            false,
-            true);
-	
-	try {
-//		for(int i = 0; i < 5; i++) {
-//		      gPool.addObject();
-//		    }
-
-		    // PoolingDataSource pds = new PoolingDataSource(gPool);
-		    PoolingDriver pd = new PoolingDriver();
-		    pd.registerPool(dsName, gPool);
-
-		    for(int i = 0; i < 5; i++) {
-		      gPool.addObject();
-		    }
-		
-	} catch (Exception e) {
-		throw new DBDatasourceServiceException(e);
-	}
-    
-    Database database = new Database(databaseMeta);
+    config.maxActive = maxActive;
+    config.maxIdle = platformConfig.getInt(POOL_MAX_IDLE, maxActive);
+    pool.setConfig(config);
+    metrics.setPool(pool);
+
+    InstaviewConnectionCustomizer customizer = new InstaviewConnectionCustomizer(databaseMeta);
+    ConnectionFactory cf = new DatabaseMetaConnectionFactory(customizer,
+        platformConfig.getInt(STATEMENT_CACHE_SIZE, DEFAULT_STATEMENT_CACHE_SIZE), metrics);
+
+    // registers itself as the factory of the pool
+    InstaviewPoolableConnectionFactory pcf = new InstaviewPoolableConnectionFactory(cf,
+        pool,
+        databaseMeta,
+        metrics,
+        platformConfig.getLong(POOL_VALIDATION_IDLE, DEFAULT_VALIDATION_IDLE),
+        platformConfig.getInt(POOL_VALIDATION_TIMEOUT, DEFAULT_VALIDATION_TIMEOUT),
+        platformConfig.getLong(POOL_MAX_LIFETIME, DEFAULT_MAX_LIFETIME),
+        platformConfig.getInt(POOL_MAX_USES, 0));
+    // dbcp re-applies these on every borrow, so they have to match what createConnection sets
+    pcf.setDefaultAutoCommit(customizer.isAutoCommit());
+    pcf.setDefaultReadOnly(customizer.isReadOnly());
+
+    return pool;
+  }
+
+  private int getInitialSize(DatabaseMeta databaseMeta) {
+    AgileBiPlatformConfig platformConfig = AgileBiPlatformConfig.getInstance();
+    int maxActive = platformConfig.getInt(POOL_MAX_ACTIVE, DEFAULT_MAX_ACTIVE);
+    int initialSize = platformConfig.getInt(POOL_INITIAL_SIZE, DEFAULT_INITIAL_SIZE);
+    if (databaseMeta.isUsingConnectionPool()) {
+      maxActive = databaseMeta.getMaximumPoolSize();
+      initialSize = databaseMeta.getInitialPoolSize();
+    }
+    return Math.min(initialSize, maxActive);
+  }
+
+  /**
+   * Closes every pool but keeps the data sources registered, so the next borrow opens fresh connections.
+   */
+  synchronized void recyclePools() {
+    for (InstaviewConnectionPool pool : pools.values()) {
+      pool.close();
+    }
+    pools.clear();
+  }
+
+  /**
+   * Counts a borrowed connection and, every instaview.datastore.restart-threshold borrows, asks the Instaview helper
+   * to restart its datastore. The pools are recycled afterwards because their connections point at the old datastore.
+   */
+  private void checkDatastoreRestart() {
+    int threshold = AgileBiPlatformConfig.getInstance().getInt(DATASTORE_RESTART_THRESHOLD, 0);
+    if (threshold <= 0 || borrowCount.incrementAndGet() < threshold) {
+      return;
+    }
+    IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
+    if (instaviewHelper == null) {
+      return;
+    }
+    borrowCount.set(0);
     try {
-      database.connect();
+      if (instaviewHelper.restartDatastore()) {
+        recyclePools();
+      }
     } catch (Exception e) {
-      throw new DBDatasourceServiceException(e);
+      log.logError("Could not restart the Instaview datastore", e); //$NON-NLS-1$
+    }
+  }
+
+  private synchronized InstaviewQueryMetrics getQueryMetrics(String dsName) {
+    InstaviewQueryMetrics metrics = queryMetrics.get(dsName);
+    if (metrics == null) {
+      // the data source was cleared while in use; keep counting without JMX registration
+      metrics = new InstaviewQueryMetrics(dsName);
+    }
+    return metrics;
+  }
+
+  /**
+   * Identifies the physical database behind a connection: two DatabaseMetas with the same driver, URL and user end
+   * up in the same pool, whatever the connection or model is called.
+   */
+  public static String getConnectionFingerprint(DatabaseMeta databaseMeta) throws KettleDatabaseException {
+    StringBuilder fingerprint = new StringBuilder();
+    fingerprint.append(Const.NVL(databaseMeta.getDriverClass(), "")).append('|'); //$NON-NLS-1$
+    fingerprint.append(Const.NVL(databaseMeta.getURL(), "")).append('|'); //$NON-NLS-1$
+    fingerprint.append(Const.NVL(databaseMeta.environmentSubstitute(databaseMeta.getUsername()), "")); //$NON-NLS-1$
+    return fingerprint.toString();
+  }
+
+  /**
+   * @return the SHA-1 of a key in hex, for file names derived from connection fingerprints
+   */
+  public static String digest(String key) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (Exception e) {
+      // SHA-1 and UTF-8 are always available
+      throw new IllegalStateException(e);
     }
-    Connection connection = database.getConnection();
-	
-	knownPools.add(dsName);
-	databaseMetaMap.put(dsName, databaseMeta);
-	
-    return new DatabaseMetaDataSource(dsName);
   }
 
   class DatabaseMetaConnectionFactory implements ConnectionFactory {
 
-	    DatabaseMeta databaseMeta;
-
-		public DatabaseMetaConnectionFactory(DatabaseMeta databaseMeta) {
-			this.databaseMeta = databaseMeta;
-		}
-		    
-
-		@Override
-		public Connection createConnection() throws SQLException {
-		      Database database = new Database(databaseMeta);
-		      try {
-		        database.connect();
-		        connectionCount++;
-    			IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
-    			if( instaviewHelper != null ) {
-    				instaviewHelper.connectionMade();
-    			}
-  		      Connection connection = database.getConnection();
-
-		      return connection;
-		        
-		      } catch (KettleException e) {
-		        e.printStackTrace();
-		        throw new SQLException(e.getMessage());
-		      }
-//		      WrappedConnection wrapper = new WrappedConnection(connection);
-		}
-	  
-  }  
-  
+    InstaviewConnectionCustomizer customizer;
+
+    int statementCacheSize;
+
+    InstaviewPoolMetrics metrics;
+
+    public DatabaseMetaConnectionFactory(InstaviewConnectionCustomizer customizer, int statementCacheSize,
+        InstaviewPoolMetrics metrics) {
+      this.customizer = customizer;
+      this.statementCacheSize = statementCacheSize;
+      this.metrics = metrics;
+    }
+
+    @Override
+    public Connection createConnection() throws SQLException {
+      long start = System.currentTimeMillis();
+      Database database = new Database(customizer.getDatabaseMeta());
+      try {
+        database.connect();
+        Connection connection = database.getConnection();
+        customizer.customize(connection);
+        metrics.connectionCreated(System.currentTimeMillis() - start);
+
+        return StatementCachingConnection.wrap(connection, statementCacheSize, metrics.getStatementStats());
+
+      } catch (KettleException e) {
+        log.logError("Could not open an Instaview connection", e); //$NON-NLS-1$
+        throw new SQLException(e.getMessage(), e);
+      } catch (SQLException e) {
+        database.disconnect();
+        throw e;
+      }
+    }
+
+  }
+
   class DatabaseMetaDataSource implements DataSource {
 
-	    DatabaseMeta databaseMeta;
-	    
-	    Connection connection;
-	    
-	    String dsName;
-	    
-	    public DatabaseMetaDataSource(String dsName) {
-	      this.dsName = dsName;
-	    }
-	    
-	    public Connection getConnection() throws SQLException {
-			Connection connection = java.sql.DriverManager.getConnection("jdbc:apache:commons:dbcp:"+dsName); //$NON-NLS-1$
-/*
-			try {
-	        connectionCount++;
-	        if( connectionCount == BOUNCE_THREASHOLD ) {
-	    		try {
-	    			IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
-	    			if( instaviewHelper != null ) {
-	    				instaviewHelper.restartDatastore();
-			        	connectionCount = 0;
-	    			}
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-	        }
-	      } catch (Exception e) {
-	        e.printStackTrace();
-	        throw new SQLException(e.getMessage());
-	      }
-	      */
-	      return connection;
-	    }
-
-	    public Connection getConnection(String username, String password) throws SQLException {
-	      return null;
-	    }
-
-	    public PrintWriter getLogWriter() throws SQLException {
-	      return null;
-	    }
-
-	    public int getLoginTimeout() throws SQLException {
-	      return 0;
-	    }
-
-	    public void setLogWriter(PrintWriter out) throws SQLException {
-	    }
-
-	    public void setLoginTimeout(int seconds) throws SQLException {
-	    }
-	   
-	    public boolean  isWrapperFor(Class<?> iface) {
-	      return false;
-	    }
-	    
-	    public <T> T unwrap(Class<T> iface) {
-	      return null;
-	    } 
-       
-            public Logger getParentLogger() {
-              return null;
-            }
-	    
-	  }
-  
+    String dsName;
+
+    public DatabaseMetaDataSource(String dsName) {
+      this.dsName = dsName;
+    }
+
+    public Connection getConnection() throws SQLException {
+      checkDatastoreRestart();
+      try {
+        InstaviewConnectionPool pool = getPool(dsName);
+        Connection connection = QueryTimingConnection.wrap(pool.getConnection(), getQueryMetrics(dsName));
+        InstaviewResultCache resultCache = InstaviewResultCache.getInstance();
+        if (resultCache.isEnabled()) {
+          // outermost, so that cache hits are not counted as queries
+          connection = ResultCachingConnection.wrap(connection, pool.getKey(), resultCache);
+        }
+        return connection;
+      } catch (DBDatasourceServiceException e) {
+        throw new SQLException(e.getMessage(), e);
+      }
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+      return null;
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+      return null;
+    }
+
+    public int getLoginTimeout() throws SQLException {
+      return 0;
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+    }
+
+    public boolean isWrapperFor(Class<?> iface) {
+      return false;
+    }
+
+    public <T> T unwrap(Class<T> iface) {
+      return null;
+    }
+
+    public Logger getParentLogger() {
+      return null;
+    }
+
+  }
+
 }
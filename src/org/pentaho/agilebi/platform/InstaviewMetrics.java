@@ -0,0 +1,69 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Registers the Instaview metrics beans with the platform MBean server.
+ */
+public class InstaviewMetrics {
+
+  public static final String JMX_DOMAIN = "org.pentaho.agilebi"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(InstaviewMetrics.class.getSimpleName());
+
+  /**
+   * @return the name the bean was registered under, or null if JMX registration failed
+   */
+  static ObjectName register(Object mbean, String type, String name) {
+    try {
+      ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name)); //$NON-NLS-1$ //$NON-NLS-2$
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(mbean, objectName);
+      return objectName;
+    } catch (Exception e) {
+      log.logError("Could not register " + type + " metrics for " + name, e); //$NON-NLS-1$ //$NON-NLS-2$
+      return null;
+    }
+  }
+
+  static void unregister(ObjectName objectName) {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (Exception e) {
+      log.logError("Could not unregister " + objectName, e); //$NON-NLS-1$
+    }
+  }
+
+}
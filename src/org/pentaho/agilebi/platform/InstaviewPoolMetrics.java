@@ -0,0 +1,155 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+/**
+ * Borrow, connection creation, validation and statement cache figures of one Instaview connection pool.
+ */
+public class InstaviewPoolMetrics implements InstaviewPoolMetricsMXBean {
+
+  private final String key;
+
+  private final StatementCachingConnection.Stats statementStats = new StatementCachingConnection.Stats();
+
+  private final LatencyHistogram borrowWait = new LatencyHistogram();
+
+  private final LatencyHistogram connectionCreate = new LatencyHistogram();
+
+  private final AtomicLong validationFailures = new AtomicLong();
+
+  private volatile GenericObjectPool pool;
+
+  private ObjectName objectName;
+
+  InstaviewPoolMetrics(String key) {
+    this.key = key;
+  }
+
+  void setPool(GenericObjectPool pool) {
+    this.pool = pool;
+  }
+
+  StatementCachingConnection.Stats getStatementStats() {
+    return statementStats;
+  }
+
+  void borrowed(long waitMillis) {
+    borrowWait.record(waitMillis);
+    IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
+    if (instaviewHelper != null) {
+      instaviewHelper.connectionBorrowed(key, waitMillis);
+    }
+  }
+
+  void connectionCreated(long millis) {
+    connectionCreate.record(millis);
+    IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
+    if (instaviewHelper != null) {
+      instaviewHelper.connectionMade();
+      instaviewHelper.connectionCreated(key, millis);
+    }
+  }
+
+  void validationFailed() {
+    validationFailures.incrementAndGet();
+    IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
+    if (instaviewHelper != null) {
+      instaviewHelper.validationFailed(key);
+    }
+  }
+
+  void register() {
+    objectName = InstaviewMetrics.register(this, "InstaviewPool", key); //$NON-NLS-1$
+  }
+
+  void unregister() {
+    InstaviewMetrics.unregister(objectName);
+    objectName = null;
+  }
+
+  public String getConnection() {
+    return key;
+  }
+
+  public int getNumActive() {
+    GenericObjectPool p = pool;
+    return p == null ? 0 : p.getNumActive();
+  }
+
+  public int getNumIdle() {
+    GenericObjectPool p = pool;
+    return p == null ? 0 : p.getNumIdle();
+  }
+
+  public int getMaxActive() {
+    GenericObjectPool p = pool;
+    return p == null ? 0 : p.getMaxActive();
+  }
+
+  public long getBorrowCount() {
+    return borrowWait.getCount();
+  }
+
+  public double getAverageBorrowWaitMillis() {
+    return borrowWait.getAverageMillis();
+  }
+
+  public long getMaxBorrowWaitMillis() {
+    return borrowWait.getMaxMillis();
+  }
+
+  public Map<String, Long> getBorrowWaitHistogram() {
+    return borrowWait.getBuckets();
+  }
+
+  public long getConnectionsCreated() {
+    return connectionCreate.getCount();
+  }
+
+  public double getAverageConnectionCreateMillis() {
+    return connectionCreate.getAverageMillis();
+  }
+
+  public Map<String, Long> getConnectionCreateHistogram() {
+    return connectionCreate.getBuckets();
+  }
+
+  public long getValidationFailures() {
+    return validationFailures.get();
+  }
+
+  public long getStatementCacheHits() {
+    return statementStats.getHits();
+  }
+
+  public long getStatementCacheMisses() {
+    return statementStats.getMisses();
+  }
+
+  public long getStatementCacheEvictions() {
+    return statementStats.getEvictions();
+  }
+
+}
@@ -0,0 +1,57 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.Map;
+
+/**
+ * JMX view of one Instaview connection pool, registered as org.pentaho.agilebi:type=InstaviewPool.
+ */
+public interface InstaviewPoolMetricsMXBean {
+
+  public String getConnection();
+
+  public int getNumActive();
+
+  public int getNumIdle();
+
+  public int getMaxActive();
+
+  public long getBorrowCount();
+
+  public double getAverageBorrowWaitMillis();
+
+  public long getMaxBorrowWaitMillis();
+
+  public Map<String, Long> getBorrowWaitHistogram();
+
+  public long getConnectionsCreated();
+
+  public double getAverageConnectionCreateMillis();
+
+  public Map<String, Long> getConnectionCreateHistogram();
+
+  public long getValidationFailures();
+
+  public long getStatementCacheHits();
+
+  public long getStatementCacheMisses();
+
+  public long getStatementCacheEvictions();
+
+}
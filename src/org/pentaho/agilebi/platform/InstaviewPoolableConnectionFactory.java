@@ -0,0 +1,197 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.pool.ObjectPool;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.DatabaseMeta;
+
+/**
+ * Validates pooled connections only when they have been idle for a while, and retires them once they are too old or
+ * have been used too often. Validation uses the pooling "validationQuery" of the connection when one is set, JDBC4
+ * isValid() otherwise, and a dialect specific query for drivers that do not implement isValid().
+ */
+class InstaviewPoolableConnectionFactory extends PoolableConnectionFactory {
+
+  public static final String POOLING_VALIDATION_QUERY = "validationQuery"; //$NON-NLS-1$
+
+  private final DatabaseMeta databaseMeta;
+
+  private final InstaviewPoolMetrics metrics;
+
+  private final long validationIdleMillis;
+
+  private final int validationTimeoutSeconds;
+
+  private final long maxLifetimeMillis;
+
+  private final int maxUses;
+
+  private volatile String validationQuery;
+
+  private final Map<Object, ConnectionState> states =
+      Collections.synchronizedMap(new IdentityHashMap<Object, ConnectionState>());
+
+  InstaviewPoolableConnectionFactory(ConnectionFactory connectionFactory, ObjectPool pool,
+      DatabaseMeta databaseMeta, InstaviewPoolMetrics metrics, long validationIdleMillis, int validationTimeoutSeconds,
+      long maxLifetimeMillis, int maxUses) {
+    // statements are cached by StatementCachingConnection rather than by a dbcp statement pool
+    super(connectionFactory, pool, null, null, false, true);
+    this.databaseMeta = databaseMeta;
+    this.metrics = metrics;
+    this.validationIdleMillis = validationIdleMillis;
+    this.validationTimeoutSeconds = validationTimeoutSeconds;
+    this.maxLifetimeMillis = maxLifetimeMillis;
+    this.maxUses = maxUses;
+    if (databaseMeta.getConnectionPoolingProperties() != null) {
+      String query = databaseMeta.getConnectionPoolingProperties().getProperty(POOLING_VALIDATION_QUERY);
+      if (!Const.isEmpty(query)) {
+        validationQuery = query;
+      }
+    }
+  }
+
+  @Override
+  public Object makeObject() throws Exception {
+    Object obj = super.makeObject();
+    states.put(obj, new ConnectionState(System.currentTimeMillis()));
+    return obj;
+  }
+
+  @Override
+  public void destroyObject(Object obj) throws Exception {
+    states.remove(obj);
+    super.destroyObject(obj);
+  }
+
+  @Override
+  public void passivateObject(Object obj) throws Exception {
+    super.passivateObject(obj);
+    ConnectionState state = states.get(obj);
+    if (state != null) {
+      state.uses++;
+      state.lastReturned = System.currentTimeMillis();
+    }
+  }
+
+  @Override
+  public boolean validateObject(Object obj) {
+    if (!(obj instanceof Connection)) {
+      return false;
+    }
+    Connection connection = (Connection) obj;
+    ConnectionState state = states.get(obj);
+    if (state != null) {
+      long now = System.currentTimeMillis();
+      if (maxLifetimeMillis > 0 && now - state.created >= maxLifetimeMillis) {
+        return false;
+      }
+      if (maxUses > 0 && state.uses >= maxUses) {
+        return false;
+      }
+      if (now - state.lastReturned < validationIdleMillis) {
+        try {
+          return !connection.isClosed();
+        } catch (SQLException e) {
+          return false;
+        }
+      }
+    }
+    try {
+      validate(connection);
+      return true;
+    } catch (Exception e) {
+      metrics.validationFailed();
+      return false;
+    }
+  }
+
+  private void validate(Connection connection) throws SQLException {
+    if (validationQuery == null) {
+      try {
+        if (!connection.isValid(validationTimeoutSeconds)) {
+          throw new SQLException("Connection is no longer valid"); //$NON-NLS-1$
+        }
+        return;
+      } catch (SQLFeatureNotSupportedException e) {
+        validationQuery = getDialectValidationQuery(databaseMeta);
+      } catch (AbstractMethodError e) {
+        // pre-JDBC4 driver
+        validationQuery = getDialectValidationQuery(databaseMeta);
+      }
+    }
+
+    Statement stmt = connection.createStatement();
+    try {
+      stmt.setQueryTimeout(validationTimeoutSeconds);
+      ResultSet rs = stmt.executeQuery(validationQuery);
+      try {
+        if (!rs.next()) {
+          throw new SQLException("Validation query returned no rows: " + validationQuery); //$NON-NLS-1$
+        }
+      } finally {
+        rs.close();
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  static String getDialectValidationQuery(DatabaseMeta databaseMeta) {
+    String pluginId = Const.NVL(databaseMeta.getPluginId(), "").toUpperCase(); //$NON-NLS-1$
+    if (pluginId.startsWith("ORACLE")) { //$NON-NLS-1$
+      return "SELECT 1 FROM DUAL"; //$NON-NLS-1$
+    } else if (pluginId.equals("DB2") || pluginId.equals("AS/400")) { //$NON-NLS-1$ //$NON-NLS-2$
+      return "SELECT 1 FROM SYSIBM.SYSDUMMY1"; //$NON-NLS-1$
+    } else if (pluginId.equals("HYPERSONIC")) { //$NON-NLS-1$
+      return "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS"; //$NON-NLS-1$
+    } else if (pluginId.equals("DERBY")) { //$NON-NLS-1$
+      return "VALUES 1"; //$NON-NLS-1$
+    } else if (pluginId.equals("INFORMIX")) { //$NON-NLS-1$
+      return "SELECT FIRST 1 1 FROM SYSTABLES"; //$NON-NLS-1$
+    }
+    return "SELECT 1"; //$NON-NLS-1$
+  }
+
+  private static class ConnectionState {
+
+    final long created;
+
+    volatile long lastReturned;
+
+    volatile int uses;
+
+    ConnectionState(long created) {
+      this.created = created;
+      this.lastReturned = created;
+    }
+
+  }
+
+}
@@ -0,0 +1,90 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Counts and timings of the statements executed through one Instaview data source.
+ */
+public class InstaviewQueryMetrics implements InstaviewQueryMetricsMXBean {
+
+  private final String dsName;
+
+  private final LatencyHistogram queryTime = new LatencyHistogram();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private ObjectName objectName;
+
+  InstaviewQueryMetrics(String dsName) {
+    this.dsName = dsName;
+  }
+
+  void queryExecuted(long millis, boolean failed) {
+    queryTime.record(millis);
+    if (failed) {
+      failures.incrementAndGet();
+    }
+    IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
+    if (instaviewHelper != null) {
+      instaviewHelper.queryExecuted(dsName, millis, failed);
+    }
+  }
+
+  void register() {
+    objectName = InstaviewMetrics.register(this, "InstaviewDataSource", dsName); //$NON-NLS-1$
+  }
+
+  void unregister() {
+    InstaviewMetrics.unregister(objectName);
+    objectName = null;
+  }
+
+  public String getDataSourceName() {
+    return dsName;
+  }
+
+  public long getQueryCount() {
+    return queryTime.getCount();
+  }
+
+  public long getQueryFailures() {
+    return failures.get();
+  }
+
+  public long getTotalQueryMillis() {
+    return queryTime.getTotalMillis();
+  }
+
+  public double getAverageQueryMillis() {
+    return queryTime.getAverageMillis();
+  }
+
+  public long getMaxQueryMillis() {
+    return queryTime.getMaxMillis();
+  }
+
+  public Map<String, Long> getQueryTimeHistogram() {
+    return queryTime.getBuckets();
+  }
+
+}
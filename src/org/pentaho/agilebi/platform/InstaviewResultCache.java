@@ -0,0 +1,239 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.sql.rowset.RowSetMetaDataImpl;
+
+/**
+ * Memory-bounded LRU cache of query results for the Instaview data sources. Entries are keyed by the physical
+ * connection, the normalized SQL and the statement parameters, and are dropped when a table they read is reloaded.
+ */
+public class InstaviewResultCache {
+
+  public static final String ENABLED = "instaview.result-cache.enabled"; //$NON-NLS-1$
+
+  public static final String MAX_BYTES = "instaview.result-cache.max-bytes"; //$NON-NLS-1$
+
+  public static final String MAX_ENTRY_BYTES = "instaview.result-cache.max-entry-bytes"; //$NON-NLS-1$
+
+  private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static final long DEFAULT_MAX_ENTRY_BYTES = 8L * 1024 * 1024;
+
+  private static InstaviewResultCache instance = null;
+
+  private final boolean enabled;
+
+  private final long maxBytes;
+
+  private final long maxEntryBytes;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private long totalBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  public static synchronized InstaviewResultCache getInstance() {
+    if (instance == null) {
+      AgileBiPlatformConfig platformConfig = AgileBiPlatformConfig.getInstance();
+      instance = new InstaviewResultCache(platformConfig.getBoolean(ENABLED, false),
+          platformConfig.getLong(MAX_BYTES, DEFAULT_MAX_BYTES),
+          platformConfig.getLong(MAX_ENTRY_BYTES, DEFAULT_MAX_ENTRY_BYTES));
+    }
+    return instance;
+  }
+
+  InstaviewResultCache(boolean enabled, long maxBytes, long maxEntryBytes) {
+    this.enabled = enabled && maxBytes > 0;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  long getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  synchronized Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  synchronized void put(String key, Entry entry) {
+    if (entry.sizeBytes > maxEntryBytes) {
+      return;
+    }
+    Entry previous = entries.put(key, entry);
+    if (previous != null) {
+      totalBytes -= previous.sizeBytes;
+    }
+    totalBytes += entry.sizeBytes;
+    Iterator<Entry> it = entries.values().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      totalBytes -= it.next().sizeBytes;
+      it.remove();
+    }
+  }
+
+  /**
+   * Drops every cached result whose SQL mentions the table.
+   *
+   * @return the number of entries dropped
+   */
+  public synchronized int invalidateTable(String tableName) {
+    if (tableName == null || tableName.length() == 0) {
+      return 0;
+    }
+    Pattern reference = Pattern.compile("(^|[^a-z0-9_$])" + Pattern.quote(tableName.toLowerCase()) + "($|[^a-z0-9_$])"); //$NON-NLS-1$ //$NON-NLS-2$
+    int dropped = 0;
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (reference.matcher(entry.sql).find()) {
+        totalBytes -= entry.sizeBytes;
+        it.remove();
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  public synchronized long getSizeBytes() {
+    return totalBytes;
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Collapses whitespace outside of quoted literals and identifiers, so formatting differences share an entry.
+   */
+  static String normalizeSql(String sql) {
+    StringBuilder normalized = new StringBuilder(sql.length());
+    char quote = 0;
+    boolean pendingSpace = false;
+    for (int i = 0; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (quote == 0 && Character.isWhitespace(c)) {
+        pendingSpace = normalized.length() > 0;
+        continue;
+      }
+      if (pendingSpace) {
+        normalized.append(' ');
+        pendingSpace = false;
+      }
+      normalized.append(c);
+      if (quote == 0 && (c == '\'' || c == '"' || c == '`')) {
+        quote = c;
+      } else if (c == quote) {
+        quote = 0;
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * A fully read result: its metadata and rows, plus an estimate of the heap they use.
+   */
+  static class Entry {
+
+    final String sql;
+
+    final RowSetMetaDataImpl metaData;
+
+    final List<Object[]> rows;
+
+    final long sizeBytes;
+
+    Entry(String sql, RowSetMetaDataImpl metaData, List<Object[]> rows, long sizeBytes) {
+      this.sql = sql.toLowerCase();
+      this.metaData = metaData;
+      this.rows = rows;
+      this.sizeBytes = sizeBytes;
+    }
+
+    static RowSetMetaDataImpl copyMetaData(ResultSetMetaData source) throws SQLException {
+      RowSetMetaDataImpl copy = new RowSetMetaDataImpl();
+      int columnCount = source.getColumnCount();
+      copy.setColumnCount(columnCount);
+      for (int i = 1; i <= columnCount; i++) {
+        copy.setColumnName(i, source.getColumnName(i));
+        copy.setColumnLabel(i, source.getColumnLabel(i));
+        copy.setColumnType(i, source.getColumnType(i));
+        copy.setColumnTypeName(i, source.getColumnTypeName(i));
+        copy.setNullable(i, source.isNullable(i));
+        try {
+          copy.setPrecision(i, Math.max(0, source.getPrecision(i)));
+          copy.setScale(i, Math.max(0, source.getScale(i)));
+        } catch (SQLException e) {
+          // not reported by every driver
+        }
+      }
+      return copy;
+    }
+
+    static long estimateSize(Object[] row) {
+      long size = 16 + 8L * row.length;
+      for (Object value : row) {
+        if (value instanceof String) {
+          size += 40 + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+          size += 16 + ((byte[]) value).length;
+        } else if (value != null) {
+          size += 24;
+        }
+      }
+      return size;
+    }
+
+  }
+
+}
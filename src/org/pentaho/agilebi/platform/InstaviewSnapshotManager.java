@@ -0,0 +1,420 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.Database;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Keeps local copies of modeled tables in embedded H2 databases under the Kettle directory. While a snapshot exists
+ * the Instaview data sources for that table query the copy instead of the source database. Snapshots are refreshed
+ * on demand, incrementally when an increasing column is known and by a full reload otherwise.
+ */
+public class InstaviewSnapshotManager {
+
+  public static final String ENABLED = "instaview.snapshot.enabled"; //$NON-NLS-1$
+
+  public static final String DETECT_INCREMENTAL_COLUMN = "instaview.snapshot.detect-incremental-column"; //$NON-NLS-1$
+
+  private static final String INDEX_FILE = "snapshots.properties"; //$NON-NLS-1$
+
+  private static final String LOAD_SUFFIX = "__load"; //$NON-NLS-1$
+
+  private static final int BATCH_SIZE = 1000;
+
+  private static LogChannelInterface log = new LogChannel(InstaviewSnapshotManager.class.getSimpleName());
+
+  private static InstaviewSnapshotManager instance = null;
+
+  /**
+   * Told when a snapshot is created or dropped, which changes the database a data source has to use, and when the
+   * rows of an existing snapshot are refreshed.
+   */
+  public interface Listener {
+
+    public void snapshotsChanged();
+
+    public void tableRefreshed(String tableName);
+
+  }
+
+  private final File directory;
+
+  private final Properties index = new Properties();
+
+  private final List<Listener> listeners = new ArrayList<Listener>();
+
+  public static synchronized InstaviewSnapshotManager getInstance() {
+    if (instance == null) {
+      instance = new InstaviewSnapshotManager(new File(Const.getKettleDirectory() + File.separator + "agile-bi" //$NON-NLS-1$
+          + File.separator + "snapshots")); //$NON-NLS-1$
+    }
+    return instance;
+  }
+
+  InstaviewSnapshotManager(File directory) {
+    this.directory = directory;
+    loadIndex();
+  }
+
+  /**
+   * Re-reads the snapshot index, for a platform running in a child JVM after Spoon created or dropped a snapshot.
+   */
+  public void reloadIndex() {
+    synchronized (this) {
+      index.clear();
+      loadIndex();
+    }
+    fireSnapshotsChanged();
+  }
+
+  private void loadIndex() {
+    File indexFile = new File(directory, INDEX_FILE);
+    if (indexFile.exists()) {
+      InputStream in = null;
+      try {
+        in = new FileInputStream(indexFile);
+        index.load(in);
+      } catch (Exception e) {
+        log.logError("Could not read the snapshot index " + indexFile, e); //$NON-NLS-1$
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return AgileBiPlatformConfig.getInstance().getBoolean(ENABLED, true);
+  }
+
+  public synchronized void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public synchronized void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public synchronized boolean hasSnapshot(DatabaseMeta source, String schemaName, String tableName)
+    throws KettleException {
+    return index.containsKey(getId(source, schemaName, tableName) + ".table"); //$NON-NLS-1$
+  }
+
+  /**
+   * @return the connection to the local copy of a table, or null if snapshots are disabled or the table has none
+   */
+  public synchronized DatabaseMeta getSnapshotDatabaseMeta(DatabaseMeta source, String schemaName, String tableName)
+    throws KettleException {
+    if (!isEnabled() || !hasSnapshot(source, schemaName, tableName)) {
+      return null;
+    }
+    return createSnapshotDatabaseMeta(getId(source, schemaName, tableName));
+  }
+
+  /**
+   * Creates the snapshot of a table, or refreshes it if it exists.
+   *
+   * @param incrementalColumn a column whose values only grow as rows are added; when set, refreshes only copy the rows
+   *          above the largest value already in the snapshot. May be null, a new snapshot then uses the table's
+   *          auto-increment column if it has one.
+   * @return the number of rows copied
+   */
+  public long refreshSnapshot(DatabaseMeta source, String schemaName, String tableName, String incrementalColumn)
+    throws KettleException {
+    String id = getId(source, schemaName, tableName);
+    boolean created;
+    synchronized (this) {
+      created = !index.containsKey(id + ".table"); //$NON-NLS-1$
+      if (incrementalColumn == null && !created) {
+        incrementalColumn = index.getProperty(id + ".incremental-column"); //$NON-NLS-1$
+      }
+    }
+
+    long rows = copy(id, source, schemaName, tableName, created ? null : incrementalColumn);
+    if (created && incrementalColumn == null
+        && AgileBiPlatformConfig.getInstance().getBoolean(DETECT_INCREMENTAL_COLUMN, true)) {
+      incrementalColumn = detectIncrementalColumn(source, schemaName, tableName);
+    }
+
+    synchronized (this) {
+      index.setProperty(id + ".table", Const.NVL(schemaName, "") + "." + tableName); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      if (!Const.isEmpty(incrementalColumn)) {
+        index.setProperty(id + ".incremental-column", incrementalColumn); //$NON-NLS-1$
+      }
+      index.setProperty(id + ".refreshed", Long.toString(System.currentTimeMillis())); //$NON-NLS-1$
+      saveIndex();
+    }
+
+    if (created) {
+      fireSnapshotsChanged();
+    } else {
+      fireTableRefreshed(tableName);
+    }
+    return rows;
+  }
+
+  /**
+   * Drops the snapshot of a table; its data sources go back to the source database.
+   */
+  public void dropSnapshot(DatabaseMeta source, String schemaName, String tableName) throws KettleException {
+    String id = getId(source, schemaName, tableName);
+    synchronized (this) {
+      if (index.remove(id + ".table") == null) { //$NON-NLS-1$
+        return;
+      }
+      index.remove(id + ".incremental-column"); //$NON-NLS-1$
+      index.remove(id + ".refreshed"); //$NON-NLS-1$
+      saveIndex();
+    }
+    fireSnapshotsChanged();
+    for (File file : directory.listFiles()) {
+      if (file.getName().startsWith(id + ".")) { //$NON-NLS-1$
+        file.delete();
+      }
+    }
+  }
+
+  private String getId(DatabaseMeta source, String schemaName, String tableName) throws KettleException {
+    String key = InstaviewDatasourceService.getConnectionFingerprint(source) + '|' + Const.NVL(schemaName, "") //$NON-NLS-1$
+        + '|' + tableName;
+    return "snapshot_" + InstaviewDatasourceService.digest(key); //$NON-NLS-1$
+  }
+
+  /**
+   * Looks for an auto-increment column of the source table, whose values only grow as rows are added.
+   *
+   * @return the column, or null if the table has none or the driver does not tell
+   */
+  private String detectIncrementalColumn(DatabaseMeta sourceMeta, String schemaName, String tableName) {
+    Database source = new Database(sourceMeta);
+    try {
+      source.connect();
+      Statement stmt = source.getConnection().createStatement();
+      try {
+        ResultSet rs = stmt.executeQuery("SELECT * FROM " //$NON-NLS-1$
+            + sourceMeta.getQuotedSchemaTableCombination(schemaName, tableName) + " WHERE 1 = 0"); //$NON-NLS-1$
+        try {
+          ResultSetMetaData metaData = rs.getMetaData();
+          for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (metaData.isAutoIncrement(i)) {
+              log.logBasic("Snapshot of " + tableName + " will be refreshed incrementally on " //$NON-NLS-1$ //$NON-NLS-2$
+                  + metaData.getColumnName(i));
+              return metaData.getColumnName(i);
+            }
+          }
+        } finally {
+          rs.close();
+        }
+      } finally {
+        stmt.close();
+      }
+    } catch (Exception e) {
+      log.logDetailed("Could not look for an incremental column of " + tableName + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+    } finally {
+      source.disconnect();
+    }
+    return null;
+  }
+
+  private DatabaseMeta createSnapshotDatabaseMeta(String id) {
+    DatabaseMeta meta = new DatabaseMeta(id, "H2", "Native", null, //$NON-NLS-1$ //$NON-NLS-2$
+        new File(directory, id).getAbsolutePath(), null, "sa", ""); //$NON-NLS-1$ //$NON-NLS-2$
+    // Spoon writes the file while a platform in a child JVM reads it, which H2 only allows in server mode
+    meta.addExtraOption("H2", "AUTO_SERVER", "TRUE"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    // keep the exact identifiers of the source table, they are what the model's SQL refers to
+    meta.setQuoteAllFields(true);
+    meta.setForcingIdentifiersToUpperCase(false);
+    meta.setForcingIdentifiersToLowerCase(false);
+    return meta;
+  }
+
+  private long copy(String id, DatabaseMeta sourceMeta, String schemaName, String tableName, String incrementalColumn)
+    throws KettleException {
+    directory.mkdirs();
+    DatabaseMeta snapshotMeta = createSnapshotDatabaseMeta(id);
+    // the same driver settings as the Instaview pools, so large tables stream instead of landing in Spoon's heap
+    InstaviewConnectionCustomizer customizer = new InstaviewConnectionCustomizer(sourceMeta);
+    Database source = new Database(customizer.getDatabaseMeta());
+    Database snapshot = new Database(snapshotMeta);
+    try {
+      source.connect();
+      customizer.customize(source.getConnection());
+      snapshot.connect();
+      Connection target = snapshot.getConnection();
+      target.setAutoCommit(false);
+
+      String sourceTable = sourceMeta.getQuotedSchemaTableCombination(schemaName, tableName);
+      String query = "SELECT * FROM " + sourceTable; //$NON-NLS-1$
+      RowMetaInterface fields = source.getQueryFields(query, false);
+      if (fields == null) {
+        throw new KettleException("Could not read the columns of " + sourceTable); //$NON-NLS-1$
+      }
+
+      if (!Const.isEmpty(schemaName)) {
+        execute(target, "CREATE SCHEMA IF NOT EXISTS " + snapshotMeta.quoteField(schemaName)); //$NON-NLS-1$
+      }
+      String snapshotTable = snapshotMeta.getQuotedSchemaTableCombination(schemaName, tableName);
+
+      Object watermark = null;
+      String loadTable = snapshotTable;
+      if (incrementalColumn != null) {
+        watermark = queryMax(target, snapshotMeta.quoteField(incrementalColumn), snapshotTable);
+        if (watermark != null) {
+          query += " WHERE " + sourceMeta.quoteField(incrementalColumn) + " > ?"; //$NON-NLS-1$ //$NON-NLS-2$
+        }
+      } else {
+        // full reload into a side table, so readers see the old copy until the swap
+        loadTable = snapshotMeta.getQuotedSchemaTableCombination(schemaName, tableName + LOAD_SUFFIX);
+        execute(target, "DROP TABLE IF EXISTS " + loadTable); //$NON-NLS-1$
+        execute(target, snapshot.getDDL(loadTable, fields, null, false, null, false));
+      }
+
+      long rows = copyRows(source.getConnection(), query, watermark, target, loadTable, fields);
+
+      if (incrementalColumn == null) {
+        execute(target, "DROP TABLE IF EXISTS " + snapshotTable); //$NON-NLS-1$
+        execute(target, "ALTER TABLE " + loadTable + " RENAME TO " + snapshotMeta.quoteField(tableName)); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      target.commit();
+      log.logBasic("Copied " + rows + " rows of " + sourceTable + " into snapshot " + id); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      return rows;
+    } catch (SQLException e) {
+      throw new KettleException("Could not snapshot " + tableName, e); //$NON-NLS-1$
+    } finally {
+      snapshot.disconnect();
+      source.disconnect();
+    }
+  }
+
+  private long copyRows(Connection sourceConnection, String query, Object watermark, Connection target,
+      String targetTable, RowMetaInterface fields) throws SQLException {
+    StringBuilder insert = new StringBuilder("INSERT INTO ").append(targetTable).append(" VALUES ("); //$NON-NLS-1$ //$NON-NLS-2$
+    for (int i = 0; i < fields.size(); i++) {
+      insert.append(i == 0 ? "?" : ", ?"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    insert.append(')');
+
+    PreparedStatement select = sourceConnection.prepareStatement(query);
+    PreparedStatement ps = target.prepareStatement(insert.toString());
+    long rows = 0;
+    try {
+      select.setFetchSize(BATCH_SIZE);
+      if (watermark != null) {
+        select.setObject(1, watermark);
+      }
+      ResultSet rs = select.executeQuery();
+      try {
+        int columns = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+          for (int i = 1; i <= columns; i++) {
+            ps.setObject(i, rs.getObject(i));
+          }
+          ps.addBatch();
+          if (++rows % BATCH_SIZE == 0) {
+            ps.executeBatch();
+          }
+        }
+        ps.executeBatch();
+      } finally {
+        rs.close();
+      }
+    } finally {
+      ps.close();
+      select.close();
+    }
+    return rows;
+  }
+
+  private Object queryMax(Connection connection, String column, String table) throws SQLException {
+    Statement stmt = connection.createStatement();
+    try {
+      ResultSet rs = stmt.executeQuery("SELECT MAX(" + column + ") FROM " + table); //$NON-NLS-1$ //$NON-NLS-2$
+      try {
+        return rs.next() ? rs.getObject(1) : null;
+      } finally {
+        rs.close();
+      }
+    } finally {
+      stmt.close();
+    }
+  }
+
+  private void execute(Connection connection, String sql) throws SQLException {
+    Statement stmt = connection.createStatement();
+    try {
+      stmt.execute(sql);
+    } finally {
+      stmt.close();
+    }
+  }
+
+  private void saveIndex() {
+    directory.mkdirs();
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(new File(directory, INDEX_FILE));
+      index.store(out, "Agile BI table snapshots"); //$NON-NLS-1$
+    } catch (Exception e) {
+      log.logError("Could not write the snapshot index", e); //$NON-NLS-1$
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+  }
+
+  private void fireSnapshotsChanged() {
+    List<Listener> copy;
+    synchronized (this) {
+      copy = new ArrayList<Listener>(listeners);
+    }
+    for (Listener listener : copy) {
+      listener.snapshotsChanged();
+    }
+  }
+
+  private void fireTableRefreshed(String tableName) {
+    List<Listener> copy;
+    synchronized (this) {
+      copy = new ArrayList<Listener>(listeners);
+    }
+    for (Listener listener : copy) {
+      listener.tableRefreshed(tableName);
+    }
+  }
+
+}
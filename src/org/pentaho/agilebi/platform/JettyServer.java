@@ -17,17 +17,45 @@
 
 package org.pentaho.agilebi.platform;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.BindException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.DefaultHandler;
+import org.eclipse.jetty.server.handler.GzipHandler;
 import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.logging.LogChannelInterface;
 
 public class JettyServer {
+
+  /**
+   * Notified once the /pentaho web application, and with it PentahoSystem, has been initialized.
+   */
+  public interface PlatformListener {
+    void platformStarted();
+  }
   
   private static Class<?> PKG = JettyServer.class; // for i18n purposes, needed by Translator2!!   $NON-NLS-1$
 
@@ -40,12 +68,49 @@ public class JettyServer {
   private String hostname;
 
   private int port;
-  
+
+  private int lastPort;
+
   private String webappsFolder = "plugins/spoon/agile-bi/platform/webapps"; //$NON-NLS-1$
 
+  private LazyStartHandler lazyHandler;
+
+  private String controlToken;
+
+  private volatile boolean platformStarted;
+
+  private List<PlatformListener> platformListeners = new CopyOnWriteArrayList<PlatformListener>();
+
   public JettyServer(String hostname, int port) throws Exception {
+    this(hostname, port, port);
+  }
+
+  /**
+   * Creates a server that binds to the first free port from <code>firstPort</code> to <code>lastPort</code>. A port
+   * of 0 lets the operating system pick a free one.
+   */
+  public JettyServer(String hostname, int firstPort, int lastPort) throws Exception {
+    if (firstPort < 0 || lastPort < firstPort || lastPort > 65535) {
+      throw new IllegalArgumentException("Invalid port range " + firstPort + "-" + lastPort); //$NON-NLS-1$ //$NON-NLS-2$
+    }
     this.hostname = hostname;
-    this.port = port;
+    this.port = firstPort;
+    this.lastPort = lastPort;
+  }
+
+  /**
+   * @return the port the server is listening on once started, the first port to try before that
+   */
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Serves the {@link PlatformControlHandler} commands to callers presenting this token. Used when the server runs in
+   * a child JVM of Spoon.
+   */
+  public void setControlToken(String controlToken) {
+    this.controlToken = controlToken;
   }
 
   public void setWebappsFolder(String webappsFolder) {
@@ -57,7 +122,17 @@ public class JettyServer {
   }
 
   public void startServer() throws Exception {
+    StartupTimeline.Phase phase = StartupTimeline.getInstance().begin("JettyServer.startServer"); //$NON-NLS-1$
+    try {
+      doStartServer();
+    } finally {
+      phase.end();
+    }
+  }
+
+  private void doStartServer() throws Exception {
     server = new Server();
+    server.setThreadPool(createThreadPool());
 
     WebAppContext pentahoContext = new WebAppContext();
     pentahoContext.setClassLoader(getClass().getClassLoader());
@@ -65,16 +140,186 @@ public class JettyServer {
     pentahoContext.setWar(webappsFolder + "/pentaho"); //$NON-NLS-1$
     
     pentahoContext.setParentLoaderPriority(true);
-    
+
+    AgileBiPlatformConfig config = AgileBiPlatformConfig.getInstance();
+    // let the default servlet answer with foo.js.gz when it exists and the browser accepts gzip
+    pentahoContext.setInitParameter("org.eclipse.jetty.servlet.Default.gzip", //$NON-NLS-1$
+        String.valueOf(config.getBoolean("server.gzip.precompressed", true))); //$NON-NLS-1$
+    configureResourceCache(pentahoContext, config);
+    String platformProfile = config.getString("server.platform-profile", "full"); //$NON-NLS-1$ //$NON-NLS-2$
+    StartupTimeline.getInstance().setAttribute("server.platform-profile", platformProfile); //$NON-NLS-1$
+    if ("embedded".equals(platformProfile)) { //$NON-NLS-1$
+      // trimmed Spring configuration, see pentaho-spring-beans-embedded.xml
+      pentahoContext.setOverrideDescriptor(webappsFolder + "/pentaho/WEB-INF/embedded-override-web.xml"); //$NON-NLS-1$
+    }
+
+    StaticResourceCacheHandler cacheHandler = new StaticResourceCacheHandler("/pentaho", //$NON-NLS-1$
+        new File(webappsFolder, "pentaho"), //$NON-NLS-1$
+        config.getString("server.static.version-parameters", "v,ver,version,build,cb").split(","), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        config.getLong("server.static.versioned-max-age-s", 31536000L), //$NON-NLS-1$
+        config.getLong("server.static.max-age-s", 3600L)); //$NON-NLS-1$
+    boolean lazy = config.getBoolean("server.lazy-init", false); //$NON-NLS-1$
+    if (lazy) {
+      lazyHandler = new LazyStartHandler(pentahoContext);
+      cacheHandler.setHandler(lazyHandler);
+    } else {
+      cacheHandler.setHandler(pentahoContext);
+    }
+    Handler appHandler = cacheHandler;
+
+    if (config.getBoolean("server.gzip.enabled", true)) { //$NON-NLS-1$
+      GzipHandler gzipHandler = new GzipHandler();
+      gzipHandler.setMimeTypes(config.getString("server.gzip.mime-types", //$NON-NLS-1$
+          "text/html,text/plain,text/xml,text/css,text/javascript,application/javascript,application/x-javascript," //$NON-NLS-1$
+          + "application/json,application/xml,image/svg+xml")); //$NON-NLS-1$
+      gzipHandler.setMinGzipSize(config.getInt("server.gzip.min-size", 1024)); //$NON-NLS-1$
+      gzipHandler.setHandler(appHandler);
+      appHandler = gzipHandler;
+    }
+
     HandlerCollection handlers= new HandlerCollection();
-    handlers.setHandlers(new Handler[]{pentahoContext, new DefaultHandler()});
+    if (controlToken != null) {
+      handlers.setHandlers(new Handler[]{new PlatformControlHandler(this, controlToken), appHandler, new DefaultHandler()});
+    } else {
+      handlers.setHandlers(new Handler[]{appHandler, new DefaultHandler()});
+    }
 
     server.setHandler(handlers);
 
     // Start execution
     createListeners();
 
-    server.start();
+    try {
+      server.start();
+    } catch (Exception e) {
+      server.stop();
+      throw e;
+    }
+
+    if (lazy) {
+      scheduleWarmUp(config.getLong("server.lazy-init.warm-up-delay-ms", 60000L)); //$NON-NLS-1$
+    } else {
+      firePlatformStarted();
+    }
+    preloadResources(config.getString("server.static-cache.preload", "")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Initializes the /pentaho web application if it has been deferred, blocking until it is ready. Does nothing if
+   * it is already running.
+   */
+  public void initializePlatform() throws Exception {
+    if (lazyHandler != null) {
+      lazyHandler.ensureStarted();
+    }
+  }
+
+  /**
+   * Starts initializing the /pentaho web application in the background if it has been deferred.
+   */
+  public void initializePlatformInBackground() {
+    if (!platformStarted) {
+      scheduleWarmUp(0);
+    }
+  }
+
+  public boolean isPlatformStarted() {
+    return platformStarted;
+  }
+
+  /**
+   * Adds a listener for the start of the web application. If it has already started the listener is called right
+   * away.
+   */
+  public void addPlatformListener(PlatformListener listener) {
+    platformListeners.add(listener);
+    if (platformStarted && platformListeners.remove(listener)) {
+      listener.platformStarted();
+    }
+  }
+
+  private void firePlatformStarted() {
+    platformStarted = true;
+    for (PlatformListener listener : platformListeners) {
+      if (platformListeners.remove(listener)) {
+        try {
+          listener.platformStarted();
+        } catch (Exception e) {
+          log.logError("Platform start listener failed", e); //$NON-NLS-1$
+        }
+      }
+    }
+  }
+
+  private void scheduleWarmUp(final long delayMs) {
+    if (delayMs < 0) {
+      return;
+    }
+    Thread warmUp = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(delayMs);
+          initializePlatform();
+        } catch (InterruptedException e) {
+          // Spoon is shutting down
+        } catch (Exception e) {
+          log.logError("Could not initialize the embedded BI platform", e); //$NON-NLS-1$
+        }
+      }
+    }, "agilebi-platform-warm-up"); //$NON-NLS-1$
+    warmUp.setDaemon(true);
+    warmUp.start();
+  }
+
+  /**
+   * Sizes the default servlet's resource cache. Cached files are kept in memory (or mapped, so the connector can
+   * write them straight from the page cache) and re-read when their modification time changes.
+   */
+  private void configureResourceCache(WebAppContext context, AgileBiPlatformConfig config) {
+    String prefix = "org.eclipse.jetty.servlet.Default."; //$NON-NLS-1$
+    // mapped files cannot be replaced while Spoon runs on Windows
+    context.setInitParameter(prefix + "useFileMappedBuffer", //$NON-NLS-1$
+        String.valueOf(config.getBoolean("server.static-cache.memory-mapped", !Const.isWindows()))); //$NON-NLS-1$
+    context.setInitParameter(prefix + "maxCacheSize", //$NON-NLS-1$
+        String.valueOf(config.getInt("server.static-cache.max-bytes", 64 * 1024 * 1024))); //$NON-NLS-1$
+    context.setInitParameter(prefix + "maxCachedFileSize", //$NON-NLS-1$
+        String.valueOf(config.getInt("server.static-cache.max-file-bytes", 4 * 1024 * 1024))); //$NON-NLS-1$
+    context.setInitParameter(prefix + "maxCachedFiles", //$NON-NLS-1$
+        String.valueOf(config.getInt("server.static-cache.max-files", 4096))); //$NON-NLS-1$
+  }
+
+  /**
+   * Requests the given paths below /pentaho once in the background, so the first analyzer tab finds them cached.
+   */
+  private void preloadResources(String paths) {
+    final String[] resources = paths.split(","); //$NON-NLS-1$
+    if (paths.trim().length() == 0) {
+      return;
+    }
+    Thread preloader = new Thread(new Runnable() {
+      public void run() {
+        for (String resource : resources) {
+          resource = resource.trim();
+          if (resource.length() == 0) {
+            continue;
+          }
+          InputStream in = null;
+          try {
+            URL url = new URL("http", hostname, port, "/pentaho/" + (resource.startsWith("/") ? resource.substring(1) : resource)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestProperty("Accept-Encoding", "gzip"); //$NON-NLS-1$ //$NON-NLS-2$
+            in = connection.getInputStream();
+            IOUtils.copy(in, new NullOutputStream());
+          } catch (Exception e) {
+            log.logDebug("Could not preload " + resource + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+          } finally {
+            IOUtils.closeQuietly(in);
+          }
+        }
+      }
+    }, "agilebi-static-preload"); //$NON-NLS-1$
+    preloader.setDaemon(true);
+    preloader.start();
   }
 
   protected void setupListeners() {
@@ -91,16 +336,70 @@ public class JettyServer {
     }
   }
 
-  private void createListeners() {
-    SocketConnector connector = new SocketConnector();
-    connector.setPort(port);
-    connector.setHost(hostname);
-    connector.setName(hostname);
+  /**
+   * Request threads are shared by all connections; the selector connector only takes one while a request is being
+   * handled, so idle keep-alive connections from the analyzer tabs do not pin threads.
+   */
+  private QueuedThreadPool createThreadPool() {
+    AgileBiPlatformConfig config = AgileBiPlatformConfig.getInstance();
+    int maxThreads = Math.max(1, config.getInt("server.threads.max", 50)); //$NON-NLS-1$
+    QueuedThreadPool threadPool = new QueuedThreadPool();
+    threadPool.setName("agilebi-jetty"); //$NON-NLS-1$
+    threadPool.setDaemon(true);
+    threadPool.setMaxThreads(maxThreads);
+    threadPool.setMinThreads(Math.min(maxThreads, config.getInt("server.threads.min", 4))); //$NON-NLS-1$
+    threadPool.setMaxIdleTimeMs(config.getInt("server.threads.idle-timeout-ms", 60000)); //$NON-NLS-1$
+    int maxQueued = config.getInt("server.threads.max-queued", 0); //$NON-NLS-1$
+    if (maxQueued > 0) {
+      threadPool.setMaxQueued(maxQueued);
+    }
+    return threadPool;
+  }
+
+  private void createListeners() throws IOException {
+    SelectChannelConnector connector = bind();
     log.logBasic("WebServer.Log.CreateListener " + hostname + ":" + port);
 
     server.setConnectors(new Connector[] { connector });
   }
 
+  private SelectChannelConnector createConnector(int candidate) {
+    AgileBiPlatformConfig config = AgileBiPlatformConfig.getInstance();
+    SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setHost(hostname);
+    connector.setName(hostname);
+    connector.setPort(candidate);
+    connector.setAcceptors(Math.max(1, config.getInt("server.acceptors", 1))); //$NON-NLS-1$
+    connector.setAcceptQueueSize(config.getInt("server.accept-queue-size", 128)); //$NON-NLS-1$
+    connector.setMaxIdleTime(config.getInt("server.connection.max-idle-ms", 30000)); //$NON-NLS-1$
+    return connector;
+  }
+
+  /**
+   * Opens the server socket on the first free port of the range, so that no other process can take the port
+   * between finding it and starting the server. Each port gets a fresh connector: one that failed to bind keeps its
+   * unbound channel and would not open again.
+   *
+   * @return the open connector
+   */
+  SelectChannelConnector bind() throws IOException {
+    for (int candidate = port; candidate <= lastPort; candidate++) {
+      SelectChannelConnector connector = createConnector(candidate);
+      try {
+        connector.open();
+        port = connector.getLocalPort();
+        return connector;
+      } catch (BindException e) {
+        connector.close();
+        log.logDebug("Port " + candidate + " on " + hostname + " is in use"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      }
+    }
+    String range = port == lastPort ? String.valueOf(port) : port + "-" + lastPort; //$NON-NLS-1$
+    throw new BindException("Could not bind the embedded BI server to " + hostname + " on port " + range //$NON-NLS-1$ //$NON-NLS-2$
+        + ", all ports are in use or not permitted. Set server.port-range in agile-bi-platform.properties to " //$NON-NLS-1$
+        + "other ports, or to 0 for any free port."); //$NON-NLS-1$
+  }
+
   /**
    * @return the hostname
    */
@@ -115,4 +414,72 @@ public class JettyServer {
     this.hostname = hostname;
   }
 
+  /**
+   * Holds back starting a handler, the /pentaho web application with its Spring system listeners, until the first
+   * request for it or an explicit {@link JettyServer#initializePlatform()}.
+   */
+  private class LazyStartHandler extends AbstractHandler {
+
+    private final Handler handler;
+
+    LazyStartHandler(Handler handler) {
+      this.handler = handler;
+    }
+
+    @Override
+    public void setServer(Server server) {
+      super.setServer(server);
+      handler.setServer(server);
+    }
+
+    synchronized void ensureStarted() throws Exception {
+      if (!handler.isStarted()) {
+        StartupTimeline.Phase phase = StartupTimeline.getInstance().begin("deferred /pentaho initialization"); //$NON-NLS-1$
+        try {
+          handler.start();
+        } finally {
+          phase.end();
+        }
+        log.logBasic("Embedded BI platform initialized in " + phase.getDuration() + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+        firePlatformStarted();
+      }
+    }
+
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+      if (baseRequest.isHandled()
+          || (handler instanceof ContextHandler && !target.startsWith(((ContextHandler) handler).getContextPath()))) {
+        return;
+      }
+      if (!handler.isStarted()) {
+        try {
+          ensureStarted();
+        } catch (IOException e) {
+          throw e;
+        } catch (ServletException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new ServletException(e);
+        }
+      }
+      handler.handle(target, baseRequest, request, response);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+      synchronized (this) {
+        if (handler.isStarted()) {
+          handler.stop();
+        }
+      }
+      super.doStop();
+    }
+
+    @Override
+    public void destroy() {
+      handler.destroy();
+      super.destroy();
+    }
+  }
+
 }
@@ -0,0 +1,83 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with fixed millisecond buckets.
+ */
+public class LatencyHistogram {
+
+  private static final long[] BOUNDS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong totalMillis = new AtomicLong();
+
+  private final AtomicLong maxMillis = new AtomicLong();
+
+  public void record(long millis) {
+    int bucket = 0;
+    while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalMillis.addAndGet(millis);
+    long max = maxMillis.get();
+    while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+      max = maxMillis.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getTotalMillis() {
+    return totalMillis.get();
+  }
+
+  public long getMaxMillis() {
+    return maxMillis.get();
+  }
+
+  public double getAverageMillis() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) totalMillis.get() / n;
+  }
+
+  /**
+   * @return the number of samples per bucket, keyed by the bucket's upper bound ("<=10ms", ..., ">10000ms")
+   */
+  public Map<String, Long> getBuckets() {
+    Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < BOUNDS.length; i++) {
+      buckets.put("<=" + BOUNDS[i] + "ms", counts.get(i)); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    buckets.put(">" + BOUNDS[BOUNDS.length - 1] + "ms", counts.get(BOUNDS.length)); //$NON-NLS-1$ //$NON-NLS-2$
+    return buckets;
+  }
+
+}
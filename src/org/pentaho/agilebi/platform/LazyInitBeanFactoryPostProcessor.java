@@ -0,0 +1,78 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Marks every singleton of the platform's Spring context lazy, so only the beans the analyzer and data access paths
+ * actually ask for get created. Application listeners, bean post processors and the classes listed in
+ * <code>eagerBeanClasses</code> (beans that wire PentahoSystem as a side effect) are left as they are.
+ */
+public class LazyInitBeanFactoryPostProcessor implements BeanFactoryPostProcessor {
+
+  private static LogChannelInterface log = new LogChannel(LazyInitBeanFactoryPostProcessor.class.getSimpleName());
+
+  private Set<String> eagerBeanClasses = new HashSet<String>();
+
+  public void setEagerBeanClasses(List<String> eagerBeanClasses) {
+    this.eagerBeanClasses = new HashSet<String>(eagerBeanClasses);
+  }
+
+  public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+    int madeLazy = 0;
+    for (String name : beanFactory.getBeanDefinitionNames()) {
+      BeanDefinition definition = beanFactory.getBeanDefinition(name);
+      if (definition.isAbstract() || definition.isLazyInit() || !definition.isSingleton()
+          || !canBeLazy(definition.getBeanClassName(), beanFactory.getBeanClassLoader())) {
+        continue;
+      }
+      definition.setLazyInit(true);
+      madeLazy++;
+    }
+    log.logBasic("Deferred creation of " + madeLazy + " platform beans until first use"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private boolean canBeLazy(String className, ClassLoader classLoader) {
+    if (className == null || eagerBeanClasses.contains(className)) {
+      return false;
+    }
+    try {
+      Class<?> beanClass = ClassUtils.forName(className, classLoader);
+      return !ApplicationListener.class.isAssignableFrom(beanClass)
+          && !BeanPostProcessor.class.isAssignableFrom(beanClass)
+          && !BeanFactoryPostProcessor.class.isAssignableFrom(beanClass);
+    } catch (Throwable t) {
+      // let Spring report the missing class the usual way
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,112 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.pentaho.platform.api.engine.ICacheManager;
+import org.pentaho.platform.api.engine.IPluginManager;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+
+/**
+ * Lets Spoon drive a platform running in a child JVM over HTTP. Requests to <code>/agilebi-control/&lt;command&gt;</code>
+ * must carry the token the child was started with in the {@link #TOKEN_HEADER} header.
+ * <ul>
+ * <li><code>health</code> answers <code>ok</code></li>
+ * <li><code>initialize</code> initializes a deferred /pentaho web application</li>
+ * <li><code>plugin-registered?id=...</code> answers whether a platform plugin is registered</li>
+ * <li><code>flush-cache?region=...</code> clears a region of the platform cache</li>
+ * <li><code>invalidate-table?table=...</code> drops the cached Instaview results that read a table</li>
+ * <li><code>snapshots-changed</code> re-reads the table snapshots Spoon created or dropped</li>
+ * <li><code>helper-result?call=...&amp;value=...&amp;error=...</code> answers a relayed Instaview helper call, see
+ * {@link RelayedInstaviewHelper}</li>
+ * </ul>
+ */
+public class PlatformControlHandler extends AbstractHandler {
+
+  public static final String CONTEXT_PATH = "/agilebi-control"; //$NON-NLS-1$
+
+  public static final String TOKEN_HEADER = "X-AgileBI-Token"; //$NON-NLS-1$
+
+  private final JettyServer jettyServer;
+
+  private final String token;
+
+  public PlatformControlHandler(JettyServer jettyServer, String token) {
+    this.jettyServer = jettyServer;
+    this.token = token;
+  }
+
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+    if (!target.startsWith(CONTEXT_PATH + "/")) { //$NON-NLS-1$
+      return;
+    }
+    baseRequest.setHandled(true);
+    if (!token.equals(request.getHeader(TOKEN_HEADER))) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    String command = target.substring(CONTEXT_PATH.length() + 1);
+    String result;
+    try {
+      if ("health".equals(command)) { //$NON-NLS-1$
+        result = "ok"; //$NON-NLS-1$
+      } else if ("initialize".equals(command)) { //$NON-NLS-1$
+        jettyServer.initializePlatform();
+        result = "ok"; //$NON-NLS-1$
+      } else if ("plugin-registered".equals(command)) { //$NON-NLS-1$
+        jettyServer.initializePlatform();
+        result = String.valueOf(isPluginRegistered(request.getParameter("id"))); //$NON-NLS-1$
+      } else if ("flush-cache".equals(command)) { //$NON-NLS-1$
+        ICacheManager cacheManager = jettyServer.isPlatformStarted() ? PentahoSystem.getCacheManager(null) : null;
+        if (cacheManager != null) {
+          cacheManager.clearRegionCache(request.getParameter("region")); //$NON-NLS-1$
+        }
+        result = "ok"; //$NON-NLS-1$
+      } else if ("invalidate-table".equals(command)) { //$NON-NLS-1$
+        result = String.valueOf(InstaviewResultCache.getInstance().invalidateTable(request.getParameter("table"))); //$NON-NLS-1$
+      } else if ("snapshots-changed".equals(command)) { //$NON-NLS-1$
+        InstaviewSnapshotManager.getInstance().reloadIndex();
+        result = "ok"; //$NON-NLS-1$
+      } else if ("helper-result".equals(command)) { //$NON-NLS-1$
+        result = String.valueOf(RelayedInstaviewHelper.complete(request.getParameter("call"), //$NON-NLS-1$
+            request.getParameter("value"), request.getParameter("error"))); //$NON-NLS-1$ //$NON-NLS-2$
+      } else {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+    } catch (Exception e) {
+      throw new ServletException(e);
+    }
+    response.setContentType("text/plain"); //$NON-NLS-1$
+    response.getWriter().print(result);
+  }
+
+  private boolean isPluginRegistered(String id) {
+    IPluginManager pluginManager = PentahoSystem.get(IPluginManager.class);
+    return pluginManager != null && id != null && pluginManager.getRegisteredPlugins().contains(id);
+  }
+
+}
@@ -0,0 +1,72 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import org.pentaho.di.core.KettleEnvironment;
+
+/**
+ * Entry point of the child JVM that hosts the embedded BI platform when Spoon runs it out of process (see
+ * {@link ChildJvmPlatformServer}). Arguments are the host name and the first and last port to try. The first line
+ * of standard input is the control token, so it does not show up in the process list. Once the server is listening
+ * a line <code>AGILEBI_PORT=&lt;port&gt;</code> is printed. Instaview helper calls are relayed to Spoon through
+ * {@link RelayedInstaviewHelper}. The process stops when its standard input is closed, which also happens when Spoon
+ * dies.
+ */
+public class PlatformProcess {
+
+  public static final String PORT_LINE_PREFIX = "AGILEBI_PORT="; //$NON-NLS-1$
+
+  public static void main(String[] args) {
+    JettyServer server = null;
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+      String token = in.readLine();
+      if (token == null || token.trim().length() == 0) {
+        throw new IllegalStateException("No control token on standard input"); //$NON-NLS-1$
+      }
+      KettleEnvironment.init(false);
+
+      // the helper Spoon registered stays in Spoon, calls to it are relayed over standard output
+      InstaviewHelper.setInstaviewHelper(new RelayedInstaviewHelper(System.out,
+          AgileBiPlatformConfig.getInstance().getInt("server.child-jvm.command-timeout-ms", 300000))); //$NON-NLS-1$
+
+      server = new JettyServer(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+      server.setControlToken(token.trim());
+      server.startServer();
+      System.out.println(PORT_LINE_PREFIX + server.getPort());
+      System.out.flush();
+
+      // block until Spoon closes our standard input
+      while (in.read() != -1) {
+        // ignore anything sent
+      }
+    } catch (Throwable t) {
+      t.printStackTrace();
+      System.exit(1);
+    } finally {
+      if (server != null) {
+        server.stopServer();
+      }
+    }
+    System.exit(0);
+  }
+
+}
@@ -0,0 +1,104 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+/**
+ * Wraps a borrowed connection so that every execute call on its statements is timed and counted against the data
+ * source it was borrowed for. The time measured runs until the driver returns, which for streamed result sets is
+ * before all rows have been read.
+ */
+class QueryTimingConnection implements InvocationHandler {
+
+  private final Connection connection;
+
+  private final InstaviewQueryMetrics metrics;
+
+  private Connection proxy;
+
+  static Connection wrap(Connection connection, InstaviewQueryMetrics metrics) {
+    QueryTimingConnection handler = new QueryTimingConnection(connection, metrics);
+    handler.proxy = (Connection) Proxy.newProxyInstance(QueryTimingConnection.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, handler);
+    return handler.proxy;
+  }
+
+  private QueryTimingConnection(Connection connection, InstaviewQueryMetrics metrics) {
+    this.connection = connection;
+    this.metrics = metrics;
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Object result = invokeOn(connection, method, args);
+    if (result instanceof Statement) {
+      Class<?> type = Statement.class;
+      if (result instanceof CallableStatement) {
+        type = CallableStatement.class;
+      } else if (result instanceof PreparedStatement) {
+        type = PreparedStatement.class;
+      }
+      return Proxy.newProxyInstance(QueryTimingConnection.class.getClassLoader(), new Class<?>[] { type },
+          new TimedStatement((Statement) result));
+    }
+    return result;
+  }
+
+  private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private class TimedStatement implements InvocationHandler {
+
+    private final Statement statement;
+
+    TimedStatement(Statement statement) {
+      this.statement = statement;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getName().equals("getConnection")) { //$NON-NLS-1$
+        return QueryTimingConnection.this.proxy;
+      } else if (!method.getName().startsWith("execute")) { //$NON-NLS-1$
+        return invokeOn(statement, method, args);
+      }
+      long start = System.currentTimeMillis();
+      boolean failed = true;
+      try {
+        Object result = invokeOn(statement, method, args);
+        failed = false;
+        return result;
+      } finally {
+        metrics.queryExecuted(System.currentTimeMillis() - start, failed);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,169 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pentaho.di.core.Const;
+
+/**
+ * The Instaview helper of a platform running in a child JVM (see {@link PlatformProcess}). The real helper stays in
+ * Spoon; every call is written to the child's standard output as a line starting with {@link #LINE_PREFIX}, which
+ * {@link ChildJvmPlatformServer} hands to Spoon's helper. {@link #restartDatastore()} waits for Spoon to post the
+ * answer back with the <code>helper-result</code> command of {@link PlatformControlHandler}.
+ */
+public class RelayedInstaviewHelper implements IInstaviewHelper {
+
+  public static final String LINE_PREFIX = "AGILEBI_HELPER "; //$NON-NLS-1$
+
+  public static final String RESTART_DATASTORE = "restartDatastore"; //$NON-NLS-1$
+
+  private static final Map<String, BlockingQueue<String[]>> pending = new ConcurrentHashMap<String, BlockingQueue<String[]>>();
+
+  private static final AtomicLong lastCall = new AtomicLong();
+
+  private final PrintStream out;
+
+  private final long timeoutMillis;
+
+  /**
+   * @param out the stream Spoon reads, normally System.out
+   * @param timeoutMillis how long {@link #restartDatastore()} waits for Spoon's answer
+   */
+  public RelayedInstaviewHelper(PrintStream out, long timeoutMillis) {
+    this.out = out;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public void connectionMade() {
+    send("connectionMade"); //$NON-NLS-1$
+  }
+
+  public boolean restartDatastore() throws Exception {
+    String call = String.valueOf(lastCall.incrementAndGet());
+    BlockingQueue<String[]> answer = new ArrayBlockingQueue<String[]>(1);
+    pending.put(call, answer);
+    try {
+      send(RESTART_DATASTORE, call);
+      String[] result = answer.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+      if (result == null) {
+        throw new TimeoutException("Spoon did not answer the datastore restart within " + timeoutMillis + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      if (result[1] != null) {
+        throw new Exception("Spoon could not restart the Instaview datastore: " + result[1]); //$NON-NLS-1$
+      }
+      return Boolean.parseBoolean(result[0]);
+    } finally {
+      pending.remove(call);
+    }
+  }
+
+  public void connectionCreated(String poolKey, long millis) {
+    send("connectionCreated", poolKey, String.valueOf(millis)); //$NON-NLS-1$
+  }
+
+  public void connectionBorrowed(String poolKey, long waitMillis) {
+    send("connectionBorrowed", poolKey, String.valueOf(waitMillis)); //$NON-NLS-1$
+  }
+
+  public void validationFailed(String poolKey) {
+    send("validationFailed", poolKey); //$NON-NLS-1$
+  }
+
+  public void queryExecuted(String dsName, long millis, boolean failed) {
+    send("queryExecuted", dsName, String.valueOf(millis), String.valueOf(failed)); //$NON-NLS-1$
+  }
+
+  /**
+   * Hands Spoon's answer to a waiting {@link #restartDatastore()}.
+   *
+   * @param error the reason the call failed in Spoon, null if it did not
+   * @return false if nobody waits for that call any more
+   */
+  public static boolean complete(String call, String value, String error) {
+    BlockingQueue<String[]> answer = call == null ? null : pending.get(call);
+    return answer != null && answer.offer(new String[] { value, error });
+  }
+
+  /**
+   * Calls the helper a relayed line asks for. A datastore restart is not answered here, the caller posts the result.
+   *
+   * @param call a line split by {@link #parse(String)}
+   */
+  public static void dispatch(IInstaviewHelper helper, String[] call) {
+    String method = call[0];
+    if ("connectionMade".equals(method)) { //$NON-NLS-1$
+      helper.connectionMade();
+    } else if ("connectionCreated".equals(method)) { //$NON-NLS-1$
+      helper.connectionCreated(call[1], Long.parseLong(call[2]));
+    } else if ("connectionBorrowed".equals(method)) { //$NON-NLS-1$
+      helper.connectionBorrowed(call[1], Long.parseLong(call[2]));
+    } else if ("validationFailed".equals(method)) { //$NON-NLS-1$
+      helper.validationFailed(call[1]);
+    } else if ("queryExecuted".equals(method)) { //$NON-NLS-1$
+      helper.queryExecuted(call[1], Long.parseLong(call[2]), Boolean.parseBoolean(call[3]));
+    }
+  }
+
+  /**
+   * @return the method name followed by its arguments, null if the line is not a relayed call
+   */
+  public static String[] parse(String line) {
+    if (line == null || !line.startsWith(LINE_PREFIX)) {
+      return null;
+    }
+    String[] call = line.substring(LINE_PREFIX.length()).split(" "); //$NON-NLS-1$
+    try {
+      for (int i = 1; i < call.length; i++) {
+        call[i] = URLDecoder.decode(call[i], Const.XML_ENCODING);
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    return call;
+  }
+
+  static String format(String method, String... arguments) {
+    StringBuilder line = new StringBuilder(LINE_PREFIX).append(method);
+    try {
+      for (String argument : arguments) {
+        line.append(' ').append(URLEncoder.encode(String.valueOf(argument), Const.XML_ENCODING));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    return line.toString();
+  }
+
+  private void send(String method, String... arguments) {
+    // println is synchronized, so lines of concurrent calls do not mix
+    out.println(format(method, arguments));
+    out.flush();
+  }
+
+}
@@ -0,0 +1,392 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.sql.rowset.RowSetMetaDataImpl;
+
+/**
+ * Answers executeQuery() calls from the {@link InstaviewResultCache} when possible. On a miss the real result set is
+ * recorded while the caller reads it, and stored once it has been read to the end within the entry size limit, so
+ * streaming is not affected. Results are cached per SQL, parameter values and row and field size limits.
+ */
+class ResultCachingConnection implements InvocationHandler {
+
+  private final Connection connection;
+
+  private final String connectionKey;
+
+  private final InstaviewResultCache cache;
+
+  private Connection proxy;
+
+  static Connection wrap(Connection connection, String connectionKey, InstaviewResultCache cache) {
+    ResultCachingConnection handler = new ResultCachingConnection(connection, connectionKey, cache);
+    handler.proxy = (Connection) Proxy.newProxyInstance(ResultCachingConnection.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, handler);
+    return handler.proxy;
+  }
+
+  private ResultCachingConnection(Connection connection, String connectionKey, InstaviewResultCache cache) {
+    this.connection = connection;
+    this.connectionKey = connectionKey;
+    this.cache = cache;
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Object result = invokeOn(connection, method, args);
+    String name = method.getName();
+    if (name.equals("createStatement") && result instanceof Statement) { //$NON-NLS-1$
+      return Proxy.newProxyInstance(ResultCachingConnection.class.getClassLoader(),
+          new Class<?>[] { Statement.class }, new CachingStatement((Statement) result, null));
+    } else if (name.equals("prepareStatement") && result instanceof PreparedStatement) { //$NON-NLS-1$
+      return Proxy.newProxyInstance(ResultCachingConnection.class.getClassLoader(),
+          new Class<?>[] { PreparedStatement.class }, new CachingStatement((Statement) result, (String) args[0]));
+    }
+    return result;
+  }
+
+  private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private class CachingStatement implements InvocationHandler {
+
+    private final Statement statement;
+
+    private final String preparedSql;
+
+    private final Map<Integer, String> parameters = new TreeMap<Integer, String>();
+
+    private boolean cacheable = true;
+
+    // a result read under setMaxRows or setMaxFieldSize is not the full result of the query
+    private long maxRows = 0;
+
+    private int maxFieldSize = 0;
+
+    CachingStatement(Statement statement, String preparedSql) {
+      this.statement = statement;
+      this.preparedSql = preparedSql;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("getConnection")) { //$NON-NLS-1$
+        return ResultCachingConnection.this.proxy;
+      } else if (name.equals("clearParameters")) { //$NON-NLS-1$
+        parameters.clear();
+        cacheable = true;
+      } else if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer //$NON-NLS-1$
+          && preparedSql != null) {
+        recordParameter((Integer) args[0], name, args[1]);
+      } else if ((name.equals("setMaxRows") || name.equals("setLargeMaxRows")) && args != null && args.length == 1) { //$NON-NLS-1$ //$NON-NLS-2$
+        maxRows = ((Number) args[0]).longValue();
+      } else if (name.equals("setMaxFieldSize") && args != null && args.length == 1) { //$NON-NLS-1$
+        maxFieldSize = (Integer) args[0];
+      } else if (name.equals("executeQuery")) { //$NON-NLS-1$
+        String sql = args == null || args.length == 0 ? preparedSql : (String) args[0];
+        if (sql != null && cacheable) {
+          return executeQuery(proxy, method, args, sql);
+        }
+      }
+      return invokeOn(statement, method, args);
+    }
+
+    private void recordParameter(Integer index, String setter, Object value) {
+      if (value instanceof InputStream || value instanceof Reader || value instanceof Blob || value instanceof Clob) {
+        cacheable = false;
+      }
+      parameters.put(index, setter + ':' + (value == null ? null : value.getClass().getName() + '=' + value));
+    }
+
+    private Object executeQuery(Object statementProxy, Method method, Object[] args, String sql) throws Throwable {
+      String normalizedSql = InstaviewResultCache.normalizeSql(sql);
+      String key = connectionKey + '\n' + normalizedSql + '\n' + parameters;
+      if (maxRows > 0 || maxFieldSize > 0) {
+        key += "\nmaxRows=" + maxRows + ",maxFieldSize=" + maxFieldSize; //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      InstaviewResultCache.Entry entry = cache.get(key);
+      if (entry != null) {
+        return Proxy.newProxyInstance(ResultCachingConnection.class.getClassLoader(),
+            new Class<?>[] { ResultSet.class }, new CachedResultSet(entry, (Statement) statementProxy));
+      }
+      ResultSet resultSet = (ResultSet) invokeOn(statement, method, args);
+      return Proxy.newProxyInstance(ResultCachingConnection.class.getClassLoader(),
+          new Class<?>[] { ResultSet.class }, new RecordingResultSet(resultSet, key, normalizedSql));
+    }
+
+  }
+
+  /**
+   * Passes everything through to the real result set and copies each row as the cursor moves.
+   */
+  private class RecordingResultSet implements InvocationHandler {
+
+    private final ResultSet resultSet;
+
+    private final String key;
+
+    private final String sql;
+
+    private RowSetMetaDataImpl metaData;
+
+    private List<Object[]> rows = new ArrayList<Object[]>();
+
+    private long sizeBytes = 0;
+
+    RecordingResultSet(ResultSet resultSet, String key, String sql) {
+      this.resultSet = resultSet;
+      this.key = key;
+      this.sql = sql;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("next")) { //$NON-NLS-1$
+        boolean hasRow = resultSet.next();
+        if (rows != null) {
+          if (hasRow) {
+            record();
+          } else {
+            store();
+          }
+        }
+        return hasRow;
+      } else if (name.equals("close")) { //$NON-NLS-1$
+        // closed before the end: the rows read so far are not the whole result
+        rows = null;
+      } else if (isScrollOrUpdate(name)) {
+        // not something the cache can replay
+        rows = null;
+      }
+      return invokeOn(resultSet, method, args);
+    }
+
+    private boolean isScrollOrUpdate(String name) {
+      return name.startsWith("update") || name.startsWith("moveTo") || name.equals("previous") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          || name.equals("first") || name.equals("last") || name.equals("absolute") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          || name.equals("relative") || name.equals("beforeFirst") || name.equals("afterLast") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          || name.equals("insertRow") || name.equals("deleteRow") || name.equals("refreshRow"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    private void record() throws SQLException {
+      if (metaData == null) {
+        metaData = InstaviewResultCache.Entry.copyMetaData(resultSet.getMetaData());
+      }
+      Object[] row = new Object[metaData.getColumnCount()];
+      for (int i = 0; i < row.length; i++) {
+        Object value = resultSet.getObject(i + 1);
+        if (value instanceof Blob || value instanceof Clob) {
+          rows = null;
+          return;
+        }
+        row[i] = value;
+      }
+      sizeBytes += InstaviewResultCache.Entry.estimateSize(row);
+      if (sizeBytes > cache.getMaxEntryBytes()) {
+        rows = null;
+        return;
+      }
+      rows.add(row);
+    }
+
+    private void store() throws SQLException {
+      if (metaData == null) {
+        metaData = InstaviewResultCache.Entry.copyMetaData(resultSet.getMetaData());
+      }
+      cache.put(key, new InstaviewResultCache.Entry(sql, metaData, rows, sizeBytes));
+      rows = null;
+    }
+
+  }
+
+  /**
+   * A forward-only, read-only result set over a cached entry.
+   */
+  private static class CachedResultSet implements InvocationHandler {
+
+    private final InstaviewResultCache.Entry entry;
+
+    private final Statement statement;
+
+    private int row = -1;
+
+    private boolean closed = false;
+
+    private boolean wasNull = false;
+
+    private int fetchSize = 0;
+
+    CachedResultSet(InstaviewResultCache.Entry entry, Statement statement) {
+      this.entry = entry;
+      this.statement = statement;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("close")) { //$NON-NLS-1$
+        closed = true;
+        return null;
+      } else if (name.equals("isClosed")) { //$NON-NLS-1$
+        return closed;
+      } else if (name.equals("equals")) { //$NON-NLS-1$
+        return proxy == args[0];
+      } else if (name.equals("hashCode")) { //$NON-NLS-1$
+        return System.identityHashCode(proxy);
+      } else if (name.equals("toString")) { //$NON-NLS-1$
+        return "CachedResultSet[" + entry.sql + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+      } else if (closed) {
+        throw new SQLException("ResultSet is closed"); //$NON-NLS-1$
+      } else if (name.equals("next")) { //$NON-NLS-1$
+        if (row < entry.rows.size()) {
+          row++;
+        }
+        return row < entry.rows.size();
+      } else if (name.equals("wasNull")) { //$NON-NLS-1$
+        return wasNull;
+      } else if (name.equals("getMetaData")) { //$NON-NLS-1$
+        return entry.metaData;
+      } else if (name.equals("findColumn")) { //$NON-NLS-1$
+        return findColumn((String) args[0]);
+      } else if (name.equals("getStatement")) { //$NON-NLS-1$
+        return statement;
+      } else if (name.equals("getType")) { //$NON-NLS-1$
+        return ResultSet.TYPE_FORWARD_ONLY;
+      } else if (name.equals("getConcurrency")) { //$NON-NLS-1$
+        return ResultSet.CONCUR_READ_ONLY;
+      } else if (name.equals("getRow")) { //$NON-NLS-1$
+        return row >= 0 && row < entry.rows.size() ? row + 1 : 0;
+      } else if (name.equals("isBeforeFirst")) { //$NON-NLS-1$
+        return row < 0 && !entry.rows.isEmpty();
+      } else if (name.equals("isAfterLast")) { //$NON-NLS-1$
+        return row >= entry.rows.size() && !entry.rows.isEmpty();
+      } else if (name.equals("isFirst")) { //$NON-NLS-1$
+        return row == 0 && !entry.rows.isEmpty();
+      } else if (name.equals("getWarnings")) { //$NON-NLS-1$
+        return null;
+      } else if (name.equals("clearWarnings")) { //$NON-NLS-1$
+        return null;
+      } else if (name.equals("getFetchSize")) { //$NON-NLS-1$
+        return fetchSize;
+      } else if (name.equals("setFetchSize")) { //$NON-NLS-1$
+        fetchSize = (Integer) args[0];
+        return null;
+      } else if (name.equals("getFetchDirection")) { //$NON-NLS-1$
+        return ResultSet.FETCH_FORWARD;
+      } else if (name.equals("setFetchDirection")) { //$NON-NLS-1$
+        return null;
+      } else if (name.equals("isWrapperFor")) { //$NON-NLS-1$
+        return false;
+      } else if (name.startsWith("get") && args != null && args.length >= 1 //$NON-NLS-1$
+          && (args[0] instanceof Integer || args[0] instanceof String)) {
+        return getValue(name, method.getReturnType(), args[0]);
+      }
+      throw new SQLFeatureNotSupportedException(name);
+    }
+
+    private int findColumn(String label) throws SQLException {
+      for (int i = 1; i <= entry.metaData.getColumnCount(); i++) {
+        if (label.equalsIgnoreCase(entry.metaData.getColumnLabel(i))
+            || label.equalsIgnoreCase(entry.metaData.getColumnName(i))) {
+          return i;
+        }
+      }
+      throw new SQLException("Unknown column " + label); //$NON-NLS-1$
+    }
+
+    private Object getValue(String getter, Class<?> type, Object column) throws SQLException {
+      if (row < 0 || row >= entry.rows.size()) {
+        throw new SQLException("No current row"); //$NON-NLS-1$
+      }
+      int index = column instanceof Integer ? (Integer) column : findColumn((String) column);
+      Object value = entry.rows.get(row)[index - 1];
+      wasNull = value == null;
+      return convert(getter, type, value);
+    }
+
+    private static Object convert(String getter, Class<?> type, Object value) throws SQLException {
+      if (getter.equals("getObject")) { //$NON-NLS-1$
+        return value;
+      } else if (type.isPrimitive()) {
+        if (type == boolean.class) {
+          if (value instanceof Boolean) {
+            return value;
+          }
+          return value instanceof Number ? ((Number) value).intValue() != 0 : value != null
+              && ("true".equalsIgnoreCase(value.toString()) || "1".equals(value.toString())); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        Number number = value == null ? Integer.valueOf(0)
+            : value instanceof Number ? (Number) value : new BigDecimal(value.toString().trim());
+        if (type == int.class) {
+          return number.intValue();
+        } else if (type == long.class) {
+          return number.longValue();
+        } else if (type == double.class) {
+          return number.doubleValue();
+        } else if (type == float.class) {
+          return number.floatValue();
+        } else if (type == short.class) {
+          return number.shortValue();
+        } else if (type == byte.class) {
+          return number.byteValue();
+        }
+      } else if (value == null) {
+        return null;
+      } else if (type == String.class) {
+        return value.toString();
+      } else if (type == BigDecimal.class) {
+        return value instanceof BigDecimal ? value : new BigDecimal(value.toString().trim());
+      } else if (type == java.sql.Timestamp.class && value instanceof java.util.Date) {
+        return value instanceof java.sql.Timestamp ? value : new java.sql.Timestamp(((java.util.Date) value).getTime());
+      } else if (type == java.sql.Date.class && value instanceof java.util.Date) {
+        return value instanceof java.sql.Date ? value : new java.sql.Date(((java.util.Date) value).getTime());
+      } else if (type == java.sql.Time.class && value instanceof java.util.Date) {
+        return value instanceof java.sql.Time ? value : new java.sql.Time(((java.util.Date) value).getTime());
+      } else if (type.isInstance(value)) {
+        return value;
+      }
+      throw new SQLFeatureNotSupportedException(getter + " on a cached " + value.getClass().getName()); //$NON-NLS-1$
+    }
+
+  }
+
+}
@@ -0,0 +1,280 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Records how long the phases of the Agile BI plugin startup take. When startup is done the total and the slowest
+ * phases are logged, and every phase is written to <code>agile-bi/startup-timeline.json</code> in the Kettle
+ * directory. The full table is logged at detailed level, or when <code>startup.timeline.log-details</code> is set.
+ * Phases that end later, such as a deferred platform initialization, are added to the file as they finish.
+ * <p>
+ * Each phase also records the used heap when it ended, and the file carries the used heap and the attributes (such
+ * as the platform profile) at the end of startup, so two runs can be compared with {@link StartupTimelineComparison}.
+ */
+public class StartupTimeline {
+
+  private static LogChannelInterface log = new LogChannel(StartupTimeline.class.getSimpleName());
+
+  private static StartupTimeline instance = new StartupTimeline();
+
+  private final long jvmStartTime;
+
+  private final List<Phase> phases = new ArrayList<Phase>();
+
+  private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+  private volatile long finishTime = -1;
+
+  private volatile long finishHeapUsed = -1;
+
+  private volatile boolean finished;
+
+  public static StartupTimeline getInstance() {
+    return instance;
+  }
+
+  StartupTimeline() {
+    long start;
+    try {
+      start = ManagementFactory.getRuntimeMXBean().getStartTime();
+    } catch (Throwable t) {
+      start = System.currentTimeMillis();
+    }
+    jvmStartTime = start;
+  }
+
+  /**
+   * Starts timing a phase. Callers end it with {@link Phase#end()}, normally in a finally block.
+   */
+  public Phase begin(String name) {
+    return new Phase(name, System.currentTimeMillis(), Thread.currentThread().getName());
+  }
+
+  /**
+   * Marks the end of startup: logs the summary and writes the summary file. Only the first call has an effect.
+   */
+  public void finish() {
+    synchronized (this) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+    }
+    finishTime = System.currentTimeMillis();
+    finishHeapUsed = getHeapUsed();
+    log.logBasic(getSummaryLine());
+    if (log.isDetailed() || AgileBiPlatformConfig.getInstance().getBoolean("startup.timeline.log-details", false)) { //$NON-NLS-1$
+      log.logBasic(getSummary());
+    }
+    writeSummaryFile();
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Records a setting that changes what startup does, e.g. the platform profile, so runs can be told apart.
+   */
+  public synchronized void setAttribute(String name, String value) {
+    attributes.put(name, value);
+  }
+
+  public synchronized List<Phase> getPhases() {
+    return new ArrayList<Phase>(phases);
+  }
+
+  /**
+   * @return one line per phase, in the order the phases started
+   */
+  public String getSummary() {
+    List<Phase> sorted = getPhases();
+    Collections.sort(sorted, new Comparator<Phase>() {
+      public int compare(Phase p1, Phase p2) {
+        return p1.startTime < p2.startTime ? -1 : (p1.startTime == p2.startTime ? 0 : 1);
+      }
+    });
+    StringBuilder sb = new StringBuilder("Agile BI startup timeline (ms since JVM start, duration ms, thread, phase):"); //$NON-NLS-1$
+    for (Phase phase : sorted) {
+      sb.append(Const.CR).append(String.format("%8d %8d  %-30s %s", //$NON-NLS-1$
+          phase.startTime - jvmStartTime, phase.getDuration(), phase.threadName, phase.name));
+    }
+    return sb.toString();
+  }
+
+  String getSummaryLine() {
+    List<Phase> sorted = getPhases();
+    Collections.sort(sorted, new Comparator<Phase>() {
+      public int compare(Phase p1, Phase p2) {
+        return p1.getDuration() > p2.getDuration() ? -1 : (p1.getDuration() == p2.getDuration() ? 0 : 1);
+      }
+    });
+    StringBuilder sb = new StringBuilder("Agile BI plugin started "); //$NON-NLS-1$
+    sb.append(System.currentTimeMillis() - jvmStartTime).append("ms after JVM start; slowest phases:"); //$NON-NLS-1$
+    for (int i = 0; i < sorted.size() && i < 3; i++) {
+      sb.append(i == 0 ? " " : ", ").append(sorted.get(i).name).append(' ').append(sorted.get(i).getDuration()).append("ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the phases as a JSON document
+   */
+  String toJson() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n  \"jvmStartTime\": ").append(jvmStartTime); //$NON-NLS-1$
+    if (finishTime >= 0) {
+      sb.append(",\n  \"finishedMs\": ").append(finishTime - jvmStartTime); //$NON-NLS-1$
+      sb.append(",\n  \"heapUsedMb\": ").append(toMb(finishHeapUsed)); //$NON-NLS-1$
+    }
+    sb.append(",\n  \"attributes\": {"); //$NON-NLS-1$
+    synchronized (this) {
+      boolean first = true;
+      for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+        sb.append(first ? "" : ", ").append('"').append(escape(attribute.getKey())).append("\": \"") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            .append(escape(String.valueOf(attribute.getValue()))).append('"');
+        first = false;
+      }
+    }
+    sb.append("},\n  \"phases\": ["); //$NON-NLS-1$
+    List<Phase> list = getPhases();
+    for (int i = 0; i < list.size(); i++) {
+      Phase phase = list.get(i);
+      sb.append(i == 0 ? "\n" : ",\n"); //$NON-NLS-1$ //$NON-NLS-2$
+      sb.append("    {\"name\": \"").append(escape(phase.name)) //$NON-NLS-1$
+          .append("\", \"thread\": \"").append(escape(phase.threadName)) //$NON-NLS-1$
+          .append("\", \"startMs\": ").append(phase.startTime - jvmStartTime) //$NON-NLS-1$
+          .append(", \"durationMs\": ").append(phase.getDuration()) //$NON-NLS-1$
+          .append(", \"heapUsedMb\": ").append(toMb(phase.heapUsed)).append('}'); //$NON-NLS-1$
+    }
+    sb.append("\n  ]\n}\n"); //$NON-NLS-1$
+    return sb.toString();
+  }
+
+  /**
+   * @return the used heap in bytes, -1 if it cannot be read
+   */
+  private static long getHeapUsed() {
+    try {
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    } catch (Throwable t) {
+      return -1;
+    }
+  }
+
+  private static long toMb(long bytes) {
+    return bytes < 0 ? -1 : bytes / (1024 * 1024);
+  }
+
+  private static String escape(String value) {
+    StringBuilder sb = new StringBuilder();
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < ' ') {
+        sb.append(String.format("\\u%04x", (int) c)); //$NON-NLS-1$
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private synchronized void writeSummaryFile() {
+    File file = new File(Const.getKettleDirectory() + File.separator + "agile-bi", "startup-timeline.json"); //$NON-NLS-1$ //$NON-NLS-2$
+    Writer writer = null;
+    try {
+      file.getParentFile().mkdirs();
+      writer = new OutputStreamWriter(new FileOutputStream(file), Const.XML_ENCODING);
+      writer.write(toJson());
+    } catch (Exception e) {
+      log.logError("Could not write " + file, e); //$NON-NLS-1$
+    } finally {
+      IOUtils.closeQuietly(writer);
+    }
+  }
+
+  private void ended(Phase phase) {
+    synchronized (this) {
+      phases.add(phase);
+    }
+    if (log.isDebug()) {
+      log.logDebug(phase.name + " took " + phase.getDuration() + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    if (finished) {
+      log.logDetailed(phase.name + " finished after startup, took " + phase.getDuration() + "ms"); //$NON-NLS-1$ //$NON-NLS-2$
+      writeSummaryFile();
+    }
+  }
+
+  public class Phase {
+
+    private final String name;
+
+    private final long startTime;
+
+    private final String threadName;
+
+    private volatile long endTime = -1;
+
+    private volatile long heapUsed = -1;
+
+    Phase(String name, long startTime, String threadName) {
+      this.name = name;
+      this.startTime = startTime;
+      this.threadName = threadName;
+    }
+
+    /**
+     * Stops the clock for this phase. Further calls are ignored.
+     */
+    public void end() {
+      if (endTime < 0) {
+        endTime = System.currentTimeMillis();
+        heapUsed = getHeapUsed();
+        ended(this);
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getDuration() {
+      return endTime < 0 ? System.currentTimeMillis() - startTime : endTime - startTime;
+    }
+  }
+
+}
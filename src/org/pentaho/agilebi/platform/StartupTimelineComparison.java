@@ -0,0 +1,106 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.pentaho.di.core.Const;
+
+/**
+ * Compares two <code>startup-timeline.json</code> files written by {@link StartupTimeline}, typically one Spoon start
+ * with <code>server.platform-profile=full</code> and one with <code>embedded</code>:
+ * 
+ * <pre>
+ * java -cp ... org.pentaho.agilebi.platform.StartupTimelineComparison full.json embedded.json
+ * </pre>
+ * 
+ * Prints the time to the end of startup, the used heap at that point and the duration of every phase in both runs.
+ * Phases with the same name are added up. Take several runs of each profile with the same JVM options; a single pair
+ * is mostly noise.
+ */
+public class StartupTimelineComparison {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: StartupTimelineComparison <before.json> <after.json>"); //$NON-NLS-1$
+      System.exit(1);
+    }
+    System.out.println(compare(read(new File(args[0])), read(new File(args[1]))));
+  }
+
+  static JSONObject read(File file) throws Exception {
+    InputStream in = new FileInputStream(file);
+    try {
+      return new JSONObject(IOUtils.toString(in, Const.XML_ENCODING));
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  /**
+   * @return one line per figure: the value before, after and the difference
+   */
+  static String compare(JSONObject before, JSONObject after) throws JSONException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%10s %10s %10s  %s", "before", "after", "delta", "")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    appendLine(sb, "profile " + before.optJSONObject("attributes") + " -> " + after.optJSONObject("attributes"), //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        -1, -1);
+    appendLine(sb, "startup finished (ms after JVM start)", before.optLong("finishedMs", -1), //$NON-NLS-1$ //$NON-NLS-2$
+        after.optLong("finishedMs", -1)); //$NON-NLS-1$
+    appendLine(sb, "heap used at startup end (MB)", before.optLong("heapUsedMb", -1), //$NON-NLS-1$ //$NON-NLS-2$
+        after.optLong("heapUsedMb", -1)); //$NON-NLS-1$
+
+    Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+    addPhases(phases, before, 0);
+    addPhases(phases, after, 1);
+    for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+      appendLine(sb, phase.getKey() + " (ms)", phase.getValue()[0], phase.getValue()[1]); //$NON-NLS-1$
+    }
+    return sb.toString();
+  }
+
+  private static void addPhases(Map<String, long[]> phases, JSONObject timeline, int column) throws JSONException {
+    JSONArray list = timeline.optJSONArray("phases"); //$NON-NLS-1$
+    for (int i = 0; list != null && i < list.length(); i++) {
+      JSONObject phase = list.getJSONObject(i);
+      long[] durations = phases.get(phase.getString("name")); //$NON-NLS-1$
+      if (durations == null) {
+        durations = new long[] { -1, -1 };
+        phases.put(phase.getString("name"), durations); //$NON-NLS-1$
+      }
+      durations[column] = Math.max(durations[column], 0) + phase.getLong("durationMs"); //$NON-NLS-1$
+    }
+  }
+
+  private static void appendLine(StringBuilder sb, String label, long before, long after) {
+    sb.append(Const.CR).append(String.format("%10s %10s %10s  %s", //$NON-NLS-1$
+        before < 0 ? "-" : String.valueOf(before), //$NON-NLS-1$
+        after < 0 ? "-" : String.valueOf(after), //$NON-NLS-1$
+        before < 0 || after < 0 ? "-" : String.format("%+d", after - before), //$NON-NLS-1$ //$NON-NLS-2$
+        label));
+  }
+
+}
@@ -0,0 +1,296 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a physical connection so that closing a PreparedStatement keeps it open in a per-connection LRU cache. The
+ * next prepareStatement() call with the same SQL and result set options gets the cached statement back. Limits the
+ * caller changed (max rows, fetch size, query timeout, max field size, fetch direction) are put back to the driver's
+ * values before the statement is cached; statements with other settings changed are closed instead.
+ */
+class StatementCachingConnection implements InvocationHandler {
+
+  /**
+   * Hit, miss and eviction counters, shared by every connection of a pool.
+   */
+  static class Stats {
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    final AtomicLong evictions = new AtomicLong();
+
+    public long getHits() {
+      return hits.get();
+    }
+
+    public long getMisses() {
+      return misses.get();
+    }
+
+    public long getEvictions() {
+      return evictions.get();
+    }
+
+  }
+
+  private final Connection connection;
+
+  private final Stats stats;
+
+  private final LinkedHashMap<String, PooledStatement> idleStatements;
+
+  private Connection proxy;
+
+  private boolean closed = false;
+
+  /**
+   * @return connection itself if maxStatements is not positive, a caching proxy for it otherwise
+   */
+  static Connection wrap(Connection connection, final int maxStatements, Stats stats) {
+    if (maxStatements <= 0) {
+      return connection;
+    }
+    StatementCachingConnection handler = new StatementCachingConnection(connection, maxStatements, stats);
+    handler.proxy = (Connection) Proxy.newProxyInstance(StatementCachingConnection.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, handler);
+    return handler.proxy;
+  }
+
+  private StatementCachingConnection(Connection connection, final int maxStatements, Stats stats) {
+    this.connection = connection;
+    this.stats = stats;
+    this.idleStatements = new LinkedHashMap<String, PooledStatement>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PooledStatement> eldest) {
+        if (size() > maxStatements) {
+          closeQuietly(eldest.getValue().statement);
+          StatementCachingConnection.this.stats.evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    if (name.equals("prepareStatement") && isCacheable(method)) { //$NON-NLS-1$
+      return prepareStatement(method, args);
+    } else if (name.equals("close")) { //$NON-NLS-1$
+      close();
+      return null;
+    }
+    return invokeOn(connection, method, args);
+  }
+
+  /**
+   * Only prepareStatement(sql) and prepareStatement(sql, resultSetType, resultSetConcurrency) are cached; the
+   * generated-keys and holdability variants are rare and passed straight through.
+   */
+  private boolean isCacheable(Method method) {
+    Class<?>[] types = method.getParameterTypes();
+    return types.length == 1 || (types.length == 3 && types[1] == int.class && types[2] == int.class);
+  }
+
+  private Object prepareStatement(Method method, Object[] args) throws Throwable {
+    String key = args.length == 1 ? (String) args[0] : args[1] + "," + args[2] + ":" + args[0]; //$NON-NLS-1$ //$NON-NLS-2$
+    PooledStatement pooled;
+    synchronized (this) {
+      pooled = idleStatements.remove(key);
+    }
+    if (pooled != null) {
+      stats.hits.incrementAndGet();
+    } else {
+      stats.misses.incrementAndGet();
+      PreparedStatement statement = (PreparedStatement) invokeOn(connection, method, args);
+      try {
+        pooled = new PooledStatement(statement);
+      } catch (SQLException e) {
+        closeQuietly(statement);
+        throw e;
+      }
+    }
+    return Proxy.newProxyInstance(StatementCachingConnection.class.getClassLoader(),
+        new Class<?>[] { PreparedStatement.class }, new CachedStatement(key, pooled));
+  }
+
+  private void release(String key, PooledStatement pooled, boolean limitsChanged) {
+    PreparedStatement statement = pooled.statement;
+    try {
+      statement.clearParameters();
+      statement.clearWarnings();
+      if (limitsChanged) {
+        pooled.restoreDefaults();
+      }
+    } catch (SQLException e) {
+      closeQuietly(statement);
+      return;
+    }
+    PooledStatement previous;
+    synchronized (this) {
+      if (closed) {
+        previous = pooled;
+      } else {
+        previous = idleStatements.put(key, pooled);
+      }
+    }
+    if (previous != null) {
+      // the same SQL was checked out twice; keep only one copy
+      closeQuietly(previous.statement);
+    }
+  }
+
+  private void close() throws SQLException {
+    List<PooledStatement> statements;
+    synchronized (this) {
+      closed = true;
+      statements = new ArrayList<PooledStatement>(idleStatements.values());
+      idleStatements.clear();
+    }
+    for (Iterator<PooledStatement> it = statements.iterator(); it.hasNext();) {
+      closeQuietly(it.next().statement);
+    }
+    connection.close();
+  }
+
+  private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static void closeQuietly(PreparedStatement statement) {
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * A cached statement with the limits the driver gave it when it was prepared.
+   */
+  private static class PooledStatement {
+
+    private final PreparedStatement statement;
+
+    private final int maxRows;
+
+    private final int fetchSize;
+
+    private final int queryTimeout;
+
+    private final int maxFieldSize;
+
+    private final int fetchDirection;
+
+    PooledStatement(PreparedStatement statement) throws SQLException {
+      this.statement = statement;
+      this.maxRows = statement.getMaxRows();
+      this.fetchSize = statement.getFetchSize();
+      this.queryTimeout = statement.getQueryTimeout();
+      this.maxFieldSize = statement.getMaxFieldSize();
+      this.fetchDirection = statement.getFetchDirection();
+    }
+
+    void restoreDefaults() throws SQLException {
+      statement.setMaxRows(maxRows);
+      statement.setFetchSize(fetchSize);
+      statement.setQueryTimeout(queryTimeout);
+      statement.setMaxFieldSize(maxFieldSize);
+      statement.setFetchDirection(fetchDirection);
+    }
+
+  }
+
+  /**
+   * The statement handed to the caller; close() gives the real statement back to the cache.
+   */
+  private class CachedStatement implements InvocationHandler {
+
+    private final String key;
+
+    private final PooledStatement pooled;
+
+    private final PreparedStatement statement;
+
+    private boolean closed = false;
+
+    // setMaxRows and the like were called, see PooledStatement
+    private boolean limitsChanged = false;
+
+    // a setting that cannot be read back, such as the cursor name, was changed
+    private boolean settingsChanged = false;
+
+    CachedStatement(String key, PooledStatement pooled) {
+      this.key = key;
+      this.pooled = pooled;
+      this.statement = pooled.statement;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("close")) { //$NON-NLS-1$
+        if (!closed) {
+          closed = true;
+          if (settingsChanged) {
+            statement.close();
+          } else {
+            release(key, pooled, limitsChanged);
+          }
+        }
+        return null;
+      } else if (name.equals("isClosed")) { //$NON-NLS-1$
+        return closed || statement.isClosed();
+      } else if (name.equals("getConnection")) { //$NON-NLS-1$
+        return StatementCachingConnection.this.proxy;
+      } else if (closed) {
+        throw new SQLException("Statement is closed"); //$NON-NLS-1$
+      } else if (name.equals("setMaxRows") || name.equals("setLargeMaxRows") || name.equals("setFetchSize") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          || name.equals("setQueryTimeout") || name.equals("setMaxFieldSize") || name.equals("setFetchDirection")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        limitsChanged = true;
+      } else if (name.equals("setCursorName") || name.equals("setEscapeProcessing") || name.equals("setPoolable") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          || name.equals("closeOnCompletion")) { //$NON-NLS-1$
+        settingsChanged = true;
+      }
+      return invokeOn(statement, method, args);
+    }
+
+  }
+
+}
@@ -0,0 +1,149 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Adds Cache-Control headers to static files of a web application served from a directory. Requests carrying a
+ * version parameter (e.g. <code>?v=5.0.1</code>) are marked immutable for a long time; other static files may be
+ * cached for a short while and are then revalidated against their Last-Modified date. Dynamic content and missing
+ * files are left alone.
+ */
+public class StaticResourceCacheHandler extends HandlerWrapper {
+
+  private static final String[] STATIC_EXTENSIONS = { "js", "css", "png", "gif", "jpg", "jpeg", "svg", "ico", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+      "woff", "woff2", "ttf", "eot", "html", "htm", "json", "properties", "swf" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$
+
+  // bounds the file lookups kept, requests may name any number of missing paths
+  private static final int MAX_PATHS = 10000;
+
+  private final String contextPath;
+
+  private final File resourceBase;
+
+  private final Set<String> extensions = new HashSet<String>();
+
+  private final Set<String> versionParameters = new HashSet<String>();
+
+  // path -> whether it is a file under resourceBase
+  private final Map<String, Boolean> files = new ConcurrentHashMap<String, Boolean>();
+
+  private final long versionedMaxAge;
+
+  private final long unversionedMaxAge;
+
+  /**
+   * @param contextPath context path of the web application, e.g. <code>/pentaho</code>
+   * @param resourceBase the directory the web application serves its files from
+   * @param versionParameters names of query parameters that identify a versioned resource URL
+   * @param versionedMaxAge seconds versioned resources may be cached for
+   * @param unversionedMaxAge seconds other static resources may be cached for before revalidation
+   */
+  public StaticResourceCacheHandler(String contextPath, File resourceBase, String[] versionParameters,
+      long versionedMaxAge, long unversionedMaxAge) {
+    this.contextPath = contextPath;
+    this.resourceBase = resourceBase;
+    this.versionedMaxAge = versionedMaxAge;
+    this.unversionedMaxAge = unversionedMaxAge;
+    for (String extension : STATIC_EXTENSIONS) {
+      extensions.add(extension);
+    }
+    for (String name : versionParameters) {
+      if (name.trim().length() > 0) {
+        this.versionParameters.add(name.trim());
+      }
+    }
+  }
+
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+    String cacheControl = getCacheControl(target, request.getQueryString());
+    if (cacheControl != null && "GET".equals(request.getMethod())) { //$NON-NLS-1$
+      response.setHeader("Cache-Control", cacheControl); //$NON-NLS-1$
+    }
+    super.handle(target, baseRequest, request, response);
+  }
+
+  /**
+   * @return the Cache-Control value for a request, or null if the target is not a static file of the web application
+   */
+  String getCacheControl(String target, String queryString) {
+    if (!target.startsWith(contextPath + "/")) { //$NON-NLS-1$
+      return null;
+    }
+    String path = target.substring(contextPath.length());
+    int dot = path.lastIndexOf('.');
+    if (dot < path.lastIndexOf('/') || dot < 0
+        || !extensions.contains(path.substring(dot + 1).toLowerCase())
+        || path.toUpperCase().startsWith("/WEB-INF/") || path.indexOf("..") >= 0) { //$NON-NLS-1$ //$NON-NLS-2$
+      return null;
+    }
+    if (!isFile(path)) {
+      return null;
+    }
+    if (isVersioned(queryString)) {
+      return "public, max-age=" + versionedMaxAge + ", immutable"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    return "public, max-age=" + unversionedMaxAge + ", must-revalidate"; //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Whether a path is a file of the web application, looked up once per path: the deployed files do not change while
+   * the server runs.
+   */
+  private boolean isFile(String path) {
+    Boolean file = files.get(path);
+    if (file == null) {
+      if (files.size() >= MAX_PATHS) {
+        files.clear();
+      }
+      file = Boolean.valueOf(new File(resourceBase, path).isFile());
+      files.put(path, file);
+    }
+    return file.booleanValue();
+  }
+
+  private boolean isVersioned(String queryString) {
+    if (queryString == null) {
+      return false;
+    }
+    for (String param : queryString.split("&")) { //$NON-NLS-1$
+      int eq = param.indexOf('=');
+      String name = eq < 0 ? param : param.substring(0, eq);
+      if (versionParameters.contains(name) && eq > 0 && eq < param.length() - 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
@@ -19,15 +19,25 @@
 
 package org.pentaho.agilebi.spoon;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.swt.widgets.Display;
 import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.platform.InstaviewSnapshotManager;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.gui.SpoonFactory;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.ui.core.database.dialog.XulDatabaseExplorerController;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.TabMapEntry;
@@ -39,6 +49,17 @@ public class AgileBiDatabaseController extends AbstractXulEventHandler {
 
 	private static final String MODELER_NAME = "Model Editor"; //$NON-NLS-1$
 
+	private static LogChannelInterface log = new LogChannel(AgileBiDatabaseController.class.getSimpleName());
+
+	// snapshots are taken one at a time, they all write to the local snapshot store
+	private static final ExecutorService snapshotter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "agilebi-table-snapshot"); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	private XulDatabaseExplorerController dbExplorerController;
 
 	public AgileBiDatabaseController() {
@@ -60,35 +81,35 @@ public class AgileBiDatabaseController extends AbstractXulEventHandler {
 	public void openModeler() {
 	  getDbController();
 		this.dbExplorerController.close();
-		TableModelerSource source = new TableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema());
-		try {
-			ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper(), SpoonModelerWorkspaceHelper.initGeoContext());
-			ModelerWorkspaceUtil.populateModelFromSource(model, source);
-
-			AgileBiModelerPerspective.getInstance().createTabForModel(model, MODELER_NAME);
+		final TableModelerSource source = new TableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema());
+		ModelerHelper.getInstance().populateInBackground(new ModelerHelper.ModelPopulation() {
+			public void populate(ModelerWorkspace model) throws ModelerException {
+				ModelerWorkspaceUtil.populateModelFromSource(model, source);
+			}
 
-		} catch (Exception e) {
-			e.printStackTrace();
-			SpoonFactory.getInstance().messageBox("Could not create a modeler: " + e.getLocalizedMessage(), "Modeler Error", false, Const.ERROR);
-		}
+			public void modelReady(ModelerWorkspace model) throws Exception {
+				AgileBiModelerPerspective.getInstance().createTabForModel(model, MODELER_NAME);
+			}
+		});
 
 	}
 
 	public void quickVisualize() {
 	  getDbController();
 		this.dbExplorerController.close();
-		TableModelerSource source = new TableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema() == null ? "" : this.dbExplorerController.getSelectedSchema()); //$NON-NLS-1$
+		final TableModelerSource source = new TableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema() == null ? "" : this.dbExplorerController.getSelectedSchema()); //$NON-NLS-1$
 		if (source.getSchemaName() == null) {
 			source.setSchemaName(""); //$NON-NLS-1$
 		}
-		try {
-			ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper(), SpoonModelerWorkspaceHelper.initGeoContext());
-			ModelerWorkspaceUtil.populateModelFromSource(model, source);
-			quickVisualize(model, true);
-		} catch (Exception e) {
-			e.printStackTrace();
-			SpoonFactory.getInstance().messageBox("Could not create a modeler: " + e.getLocalizedMessage(), "Modeler Error", false, Const.ERROR);
-		}
+		ModelerHelper.getInstance().populateInBackground(new ModelerHelper.ModelPopulation() {
+			public void populate(ModelerWorkspace model) throws ModelerException {
+				ModelerWorkspaceUtil.populateModelFromSource(model, source);
+			}
+
+			public void modelReady(ModelerWorkspace model) throws Exception {
+				quickVisualize(model, true);
+			}
+		});
 	}
 
 	public void quickVisualize(ModelerWorkspace model, boolean autoModel) throws ModelerException {
@@ -109,6 +130,39 @@ public class AgileBiDatabaseController extends AbstractXulEventHandler {
 
 	}
 
+	/**
+	 * Copies the selected table into a local snapshot, or refreshes the snapshot if it exists. Visualizations of the
+	 * table then query the snapshot instead of the source database.
+	 */
+	public void snapshotTable() {
+		getDbController();
+		this.dbExplorerController.close();
+		final DatabaseMeta databaseMeta = this.dbExplorerController.getDatabaseMeta();
+		final String schemaName = this.dbExplorerController.getSelectedSchema();
+		final String tableName = this.dbExplorerController.getSelectedTable();
+		snapshotter.execute(new Runnable() {
+			public void run() {
+				try {
+					final long rows = InstaviewSnapshotManager.getInstance().refreshSnapshot(databaseMeta, schemaName, tableName, null);
+					Display.getDefault().asyncExec(new Runnable() {
+						public void run() {
+							SpoonFactory.getInstance().messageBox(BaseMessages.getString(ModelerHelper.class, "Snapshot.Done", tableName, Long.toString(rows)), //$NON-NLS-1$
+									BaseMessages.getString(ModelerHelper.class, "Snapshot.Title"), false, Const.INFO); //$NON-NLS-1$
+						}
+					});
+				} catch (final Exception e) {
+					log.logError("Could not snapshot " + tableName, e); //$NON-NLS-1$
+					Display.getDefault().asyncExec(new Runnable() {
+						public void run() {
+							SpoonFactory.getInstance().messageBox(BaseMessages.getString(ModelerHelper.class, "Snapshot.Error", tableName, e.getLocalizedMessage()), //$NON-NLS-1$
+									BaseMessages.getString(ModelerHelper.class, "Snapshot.Title"), false, Const.ERROR); //$NON-NLS-1$
+						}
+					});
+				}
+			}
+		});
+	}
+
 	public String getName() {
 		return "agilebi_database"; //$NON-NLS-1$
 	}
@@ -0,0 +1,357 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pentaho.agilebi.modeler.IModelerSource;
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
+import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.platform.AgileBiPlatformConfig;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.ProvidesDatabaseConnectionInformation;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.job.entry.JobEntryCopy;
+import org.pentaho.di.shared.SharedObjectInterface;
+import org.pentaho.di.shared.SharedObjects;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.RegistryFactory;
+
+/**
+ * Builds models for many tables without the Spoon UI: for every output step of a transformation, every job entry
+ * that writes a table, or a given table. Domains are read and auto-modeled in parallel on a bounded number of
+ * threads, each model is written as an XMI file, and the lineage of all of them is registered with a single registry
+ * commit.
+ *
+ * <p>
+ * Also runnable from the command line, from the Kettle installation directory with Spoon's class path:
+ * </p>
+ *
+ * <pre>
+ * BatchModeler -out &lt;dir&gt; [-threads &lt;n&gt;] [-trans &lt;file.ktr&gt;]... [-job &lt;file.kjb&gt;]...
+ *     [-table &lt;connection&gt;:[&lt;schema&gt;.]&lt;table&gt;]...
+ * </pre>
+ *
+ * Connections of <code>-table</code> are looked up in the given transformations and jobs, then in the shared
+ * objects file.
+ */
+public class BatchModeler {
+
+  public static final String THREADS = "modeler.batch.threads"; //$NON-NLS-1$
+
+  private static final int DEFAULT_THREADS = 4;
+
+  private static LogChannelInterface log = new LogChannel(BatchModeler.class.getSimpleName());
+
+  private final File outputDirectory;
+
+  private final int threads;
+
+  private final List<IModelerSource> sources = new ArrayList<IModelerSource>();
+
+  private final List<String> modelNames = new ArrayList<String>();
+
+  /**
+   * The outcome for one table.
+   */
+  public static class Result {
+
+    private final String modelName;
+
+    private final String fileName;
+
+    private final Exception error;
+
+    Result(String modelName, String fileName, Exception error) {
+      this.modelName = modelName;
+      this.fileName = fileName;
+      this.error = error;
+    }
+
+    public String getModelName() {
+      return modelName;
+    }
+
+    /**
+     * @return the XMI file written, or null if the model failed
+     */
+    public String getFileName() {
+      return error == null ? fileName : null;
+    }
+
+    /**
+     * @return why the model failed, or null
+     */
+    public Exception getError() {
+      return error;
+    }
+
+  }
+
+  public BatchModeler(File outputDirectory) {
+    this(outputDirectory, AgileBiPlatformConfig.getInstance().getInt(THREADS, DEFAULT_THREADS));
+  }
+
+  public BatchModeler(File outputDirectory, int threads) {
+    this.outputDirectory = outputDirectory;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Adds every step of the transformation that writes to a database table.
+   *
+   * @return the number of steps added
+   */
+  public int addTransformation(TransMeta transMeta) {
+    int added = 0;
+    for (StepMeta stepMeta : transMeta.getSteps()) {
+      ProvidesDatabaseConnectionInformation connectionInfo =
+          ModelerHelper.getDatabaseConnectionInformation(stepMeta.getStepMetaInterface());
+      if (connectionInfo != null
+          && ModelerHelper.isValidConnectionInformation(connectionInfo.getDatabaseMeta(), connectionInfo.getTableName())) {
+        addSource(ModelerHelper.getModelerSourceForStepMeta(connectionInfo, transMeta, stepMeta),
+            connectionInfo.getTableName());
+        added++;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Adds every entry of the job that writes to a database table.
+   *
+   * @return the number of entries added
+   */
+  public int addJob(JobMeta jobMeta) {
+    int added = 0;
+    for (JobEntryCopy entry : jobMeta.getJobCopies()) {
+      ProvidesDatabaseConnectionInformation connectionInfo =
+          ModelerHelper.getDatabaseConnectionInformation(entry.getEntry());
+      if (connectionInfo != null
+          && ModelerHelper.isValidConnectionInformation(connectionInfo.getDatabaseMeta(), connectionInfo.getTableName())) {
+        addSource(ModelerHelper.getModelerSourceForJobEntry(connectionInfo, jobMeta, entry),
+            connectionInfo.getTableName());
+        added++;
+      }
+    }
+    return added;
+  }
+
+  public void addTable(DatabaseMeta databaseMeta, String schemaName, String tableName) {
+    addSource(new TableModelerSource(databaseMeta, tableName, schemaName == null ? "" : schemaName), tableName); //$NON-NLS-1$
+  }
+
+  private void addSource(IModelerSource source, String tableName) {
+    sources.add(source);
+    modelNames.add(tableName);
+  }
+
+  /**
+   * Builds and writes all models added so far, then registers their lineage.
+   *
+   * @return one result per table, in the order they were added
+   */
+  public List<Result> run() {
+    outputDirectory.mkdirs();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "agilebi-batch-modeler-" + count.incrementAndGet()); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    List<Future<String>> futures = new ArrayList<Future<String>>();
+    List<String> fileNames = new ArrayList<String>();
+    Set<String> usedNames = new HashSet<String>();
+    try {
+      for (int i = 0; i < sources.size(); i++) {
+        final IModelerSource source = sources.get(i);
+        final String modelName = modelNames.get(i);
+        final String fileName = new File(outputDirectory, uniqueFileName(modelName, usedNames)).getPath();
+        fileNames.add(fileName);
+        futures.add(executor.submit(new Callable<String>() {
+          public String call() throws Exception {
+            buildModel(source, modelName, fileName);
+            return fileName;
+          }
+        }));
+      }
+
+      List<Result> results = new ArrayList<Result>();
+      List<KettleModelerSource> lineage = new ArrayList<KettleModelerSource>();
+      for (int i = 0; i < futures.size(); i++) {
+        Exception error = null;
+        try {
+          futures.get(i).get();
+          if (sources.get(i) instanceof KettleModelerSource) {
+            lineage.add((KettleModelerSource) sources.get(i));
+          }
+        } catch (ExecutionException e) {
+          error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          log.logError("Could not build the model of " + modelNames.get(i), error); //$NON-NLS-1$
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          error = e;
+        }
+        results.add(new Result(modelNames.get(i), fileNames.get(i), error));
+      }
+      registerLineage(lineage);
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void buildModel(IModelerSource source, String modelName, String fileName) throws ModelerException {
+    ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper(),
+        SpoonModelerWorkspaceHelper.initGeoContext());
+    Domain domain = source.generateDomain();
+    model.setModelSource(source);
+    model.setModelName(modelName);
+    model.setDomain(domain);
+    model.getWorkspaceHelper().autoModelFlat(model);
+    model.getWorkspaceHelper().populateDomain(model);
+    ModelerWorkspaceUtil.saveWorkspace(model, fileName);
+  }
+
+  private void registerLineage(List<KettleModelerSource> lineage) {
+    IMetadataRegistry registry = RegistryFactory.getInstance().getMetadataRegistry();
+    if (registry == null || lineage.isEmpty()) {
+      return;
+    }
+    for (KettleModelerSource source : lineage) {
+      source.registerLineageMetadata(registry);
+    }
+    try {
+      registry.commit();
+    } catch (Exception e) {
+      log.logError("Could not commit metadata registry", e); //$NON-NLS-1$
+    }
+  }
+
+  static String uniqueFileName(String modelName, Set<String> usedNames) {
+    String base = modelName.replaceAll("[^A-Za-z0-9_.\\-]", "_"); //$NON-NLS-1$ //$NON-NLS-2$
+    String name = base;
+    for (int i = 2; !usedNames.add(name.toLowerCase()); i++) {
+      name = base + "_" + i; //$NON-NLS-1$
+    }
+    return name + ".xmi"; //$NON-NLS-1$
+  }
+
+  public static void main(String[] args) {
+    try {
+      KettleEnvironment.init(false);
+      // sets up the metadata registry the lineage goes to
+      Class.forName(ModelerHelper.class.getName());
+
+      File out = null;
+      int threads = -1;
+      List<TransMeta> transformations = new ArrayList<TransMeta>();
+      List<JobMeta> jobs = new ArrayList<JobMeta>();
+      List<String> tables = new ArrayList<String>();
+      for (int i = 0; i + 1 < args.length; i += 2) {
+        if ("-out".equals(args[i])) { //$NON-NLS-1$
+          out = new File(args[i + 1]);
+        } else if ("-threads".equals(args[i])) { //$NON-NLS-1$
+          threads = Integer.parseInt(args[i + 1]);
+        } else if ("-trans".equals(args[i])) { //$NON-NLS-1$
+          transformations.add(new TransMeta(args[i + 1]));
+        } else if ("-job".equals(args[i])) { //$NON-NLS-1$
+          jobs.add(new JobMeta(args[i + 1], null));
+        } else if ("-table".equals(args[i])) { //$NON-NLS-1$
+          tables.add(args[i + 1]);
+        } else {
+          usage();
+        }
+      }
+      if (out == null || args.length % 2 != 0) {
+        usage();
+      }
+
+      BatchModeler modeler = threads > 0 ? new BatchModeler(out, threads) : new BatchModeler(out);
+      List<DatabaseMeta> databases = new ArrayList<DatabaseMeta>();
+      for (TransMeta transMeta : transformations) {
+        modeler.addTransformation(transMeta);
+        databases.addAll(transMeta.getDatabases());
+      }
+      for (JobMeta jobMeta : jobs) {
+        modeler.addJob(jobMeta);
+        databases.addAll(jobMeta.getDatabases());
+      }
+      if (!tables.isEmpty()) {
+        for (SharedObjectInterface object : new SharedObjects().getObjectsMap().values()) {
+          if (object instanceof DatabaseMeta) {
+            databases.add((DatabaseMeta) object);
+          }
+        }
+      }
+      for (String table : tables) {
+        int colon = table.indexOf(':');
+        DatabaseMeta databaseMeta = colon < 0 ? null : DatabaseMeta.findDatabase(databases, table.substring(0, colon));
+        if (databaseMeta == null) {
+          throw new IllegalArgumentException("Unknown connection in " + table); //$NON-NLS-1$
+        }
+        String qualified = table.substring(colon + 1);
+        int dot = qualified.indexOf('.');
+        modeler.addTable(databaseMeta, dot < 0 ? null : qualified.substring(0, dot), qualified.substring(dot + 1));
+      }
+
+      int failed = 0;
+      for (Result result : modeler.run()) {
+        if (result.getError() == null) {
+          System.out.println("OK     " + result.getModelName() + " -> " + result.getFileName()); //$NON-NLS-1$ //$NON-NLS-2$
+        } else {
+          System.out.println("FAILED " + result.getModelName() + ": " + result.getError().getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+          failed++;
+        }
+      }
+      System.exit(failed == 0 ? 0 : 1);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      System.exit(2);
+    }
+  }
+
+  private static void usage() {
+    throw new IllegalArgumentException("Usage: BatchModeler -out <dir> [-threads <n>] [-trans <file.ktr>]... " //$NON-NLS-1$
+        + "[-job <file.kjb>]... [-table <connection>:[<schema>.]<table>]..."); //$NON-NLS-1$
+  }
+
+}
@@ -18,7 +18,6 @@
 package org.pentaho.agilebi.spoon;
 
 import org.pentaho.agilebi.modeler.ModelerException;
-import org.pentaho.agilebi.modeler.util.ModelerSourceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.DatabaseMeta;
@@ -120,13 +119,14 @@ public class KettleModelerSource extends TableModelerSource {
 
   /**
    * Generates a {@link Domain} from the database meta, schema name, and table name. It additionally sets "SUPPORTS_OLAP"
-   * to {@code true} for all models.
+   * to {@code true} for all models. The table's metadata is read through the {@link PhysicalTableMetadataCache}.
    *
    * @return a domain that is backed by the database meta, schema name, and table name
    * @throws ModelerException if we cannot generate the domain
    */
   public Domain generateDomain() throws ModelerException {
-    Domain d = ModelerSourceUtil.generateDomain(getDatabaseMeta(), getSchemaName(), getTableName());
+    Domain d = PhysicalTableMetadataCache.getInstance().generateDomain(getDatabaseMeta(), getSchemaName(), getTableName(),
+        PhysicalTableMetadataCache.getPopulatorId(repositoryName, filename, metaName));
     for(LogicalModel lModel : d.getLogicalModels()) {
       lModel.setProperty("SUPPORTS_OLAP", Boolean.TRUE.toString() );
     }
@@ -0,0 +1,109 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.agilebi.platform.InstaviewResultCache;
+import org.pentaho.di.base.AbstractMeta;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.extension.ExtensionPoint;
+import org.pentaho.di.core.extension.ExtensionPointInterface;
+import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.job.Job;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.RegistryFactory;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.Verb;
+import org.pentaho.metadata.registry.util.RegistryUtil;
+
+/**
+ * Drops cached Instaview query results for the tables a transformation populates once it has run. The tables are
+ * found through the POPULATES links {@link KettleModelerSource#registerLineageMetadata(IMetadataRegistry)} writes.
+ * Their cached metadata in {@link PhysicalTableMetadataCache} is dropped as well.
+ */
+@ExtensionPoint(id = "AgileBiResultCacheInvalidator", extensionPointId = "TransformationFinish",
+    description = "Invalidates cached Instaview results for the tables a transformation populates")
+public class LineageResultCacheInvalidator implements ExtensionPointInterface {
+
+  private static RegistryUtil UTIL = new RegistryUtil();
+
+  /**
+   * The same for jobs, whose entries can populate tables too.
+   */
+  @ExtensionPoint(id = "AgileBiJobResultCacheInvalidator", extensionPointId = "JobFinish",
+      description = "Invalidates cached Instaview results for the tables a job populates")
+  public static class JobFinish extends LineageResultCacheInvalidator {
+  }
+
+  @Override
+  public void callExtensionPoint(LogChannelInterface log, Object object) throws KettleException {
+    AbstractMeta meta = null;
+    if (object instanceof Trans) {
+      meta = ((Trans) object).getTransMeta();
+    } else if (object instanceof Job) {
+      meta = ((Job) object).getJobMeta();
+    }
+    if (meta != null) {
+      // a run may have recreated the tables
+      PhysicalTableMetadataCache.getInstance().invalidatePopulator(PhysicalTableMetadataCache.getPopulatorId(meta));
+    }
+
+    InstaviewResultCache cache = InstaviewResultCache.getInstance();
+    // with the platform in a child JVM the results are cached there, not in Spoon's instance
+    boolean local = AgileBILifecycleListener.getChildServer() == null;
+    if (!cache.isEnabled() || (local && cache.getEntryCount() == 0)) {
+      return;
+    }
+    IMetadataRegistry registry = RegistryFactory.getInstance().getMetadataRegistry();
+    if (meta == null || registry == null) {
+      return;
+    }
+
+    int dropped = 0;
+    for (String table : getPopulatedTables(registry, meta.getRepository(), meta.getFilename())) {
+      dropped += AgileBILifecycleListener.invalidateResultCache(table);
+    }
+    if (dropped > 0 && log != null) {
+      log.logDetailed("Dropped " + dropped + " cached Instaview results populated by " + meta.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  static List<String> getPopulatedTables(IMetadataRegistry registry, Repository repository, String filename) {
+    String repositoryName = repository == null ? null : repository.getName();
+    String metaId = UTIL.generateCompositeId(repositoryName, filename);
+    List<String> tables = new ArrayList<String>();
+    for (Link link : registry.getLinks()) {
+      if (!metaId.equals(link.getSubjectId()) || !Verb.VERB_POPULATES.getId().equals(link.getVerbId())) {
+        continue;
+      }
+      Entity table = registry.getEntity(link.getObjectId(), Type.TYPE_PHYSICAL_TABLE.getId());
+      if (table != null) {
+        tables.add(table.getTitle());
+      }
+    }
+    return tables;
+  }
+
+}
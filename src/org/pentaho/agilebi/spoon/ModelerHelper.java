@@ -17,13 +17,30 @@
 
 package org.pentaho.agilebi.spoon;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
-import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.BusyIndicator;
 import org.eclipse.swt.widgets.Display;
 import org.pentaho.agilebi.modeler.IModelerSource;
 import org.pentaho.agilebi.modeler.ModelerException;
@@ -31,6 +48,8 @@ import org.pentaho.agilebi.modeler.ModelerMessagesHolder;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.platform.CatalogSnapshotManager;
+import org.pentaho.agilebi.platform.StartupTimeline;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
@@ -39,6 +58,7 @@ import org.pentaho.di.core.Const;
 import org.pentaho.di.core.EngineMetaInterface;
 import org.pentaho.di.core.ProvidesDatabaseConnectionInformation;
 import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.gui.SpoonFactory;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.job.JobMeta;
@@ -46,17 +66,19 @@ import org.pentaho.di.job.entry.JobEntryCopy;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.StepMeta;
-import org.pentaho.di.ui.core.database.dialog.DatabaseExplorerDialog;
+import org.pentaho.di.ui.core.dialog.EnterSelectionDialog;
 import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.di.ui.spoon.ISpoonMenuController;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.SpoonPerspectiveManager;
 import org.pentaho.di.ui.spoon.TabMapEntry;
+import org.pentaho.di.ui.spoon.delegates.SpoonDBDelegate;
 import org.pentaho.metadata.model.Domain;
 import org.pentaho.metadata.registry.IMetadataRegistry;
 import org.pentaho.metadata.registry.OrderedFileRegistry;
 import org.pentaho.metadata.registry.RegistryFactory;
 import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.util.XmiParser;
 import org.pentaho.reporting.engine.classic.core.ClassicEngineBoot;
 import org.pentaho.reporting.libraries.base.util.ObjectUtilities;
 import org.pentaho.ui.xul.XulException;
@@ -77,8 +99,22 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     
   private static Logger logger = LoggerFactory.getLogger(ModelerHelper.class);
 
+  private static final AtomicInteger temporaryModelIndex = new AtomicInteger();
+
+  // temporary model files still being written, by file name
+  private static final Map<String, Future<?>> temporaryModelWrites = new ConcurrentHashMap<String, Future<?>>();
+
+  private static final ExecutorService temporaryModelWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "agilebi-temp-model-writer"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
   static{
 
+    StartupTimeline.Phase phase = StartupTimeline.getInstance().begin("ModelerHelper registry init"); //$NON-NLS-1$
     try {
       ModelerMessagesHolder.setMessages(new SpoonModelerMessages());
       
@@ -98,6 +134,8 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       
     } catch (IllegalStateException e) {
       // someone else set this first, ignore this error
+    } finally {
+      phase.end();
     }
   }
   private ModelerHelper() {
@@ -271,6 +309,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
   protected static KettleModelerSource getModelerSourceForStepMeta(ProvidesDatabaseConnectionInformation connectionInfo, TransMeta transMeta, StepMeta stepMeta) {
     Repository repository = transMeta.getRepository();
     String repositoryName = repository == null ? null : repository.getName();
+    PhysicalTableMetadataCache.watchPopulator(transMeta);
     return new OutputStepModelerSource(connectionInfo.getDatabaseMeta(), connectionInfo.getTableName(), connectionInfo.getSchemaName(), transMeta.getName(), transMeta.getFilename(), repositoryName, stepMeta.getStepID());
   }
 
@@ -317,6 +356,15 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
   }
   
   public static ModelerWorkspace populateModel(ModelerWorkspace model) throws ModelerException {
+    KettleModelerSource source = createSourceForActiveEntry();
+    return populateModel(model, source);
+  }
+
+  /**
+   * Creates the modeler source for the step or job entry selected in Spoon. Reads Spoon's selection, so it must be
+   * called on the UI thread.
+   */
+  private static KettleModelerSource createSourceForActiveEntry() throws ModelerException {
 
     if (!isValidEntrySelected()) {
       throw new ModelerException(BaseMessages.getString(ModelerHelper.class, "InvalidEntrySelected"));
@@ -334,11 +382,17 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     if (source == null) {
       throw new ModelerException(BaseMessages.getString(ModelerHelper.class, "Error.NoModelerSource", connectionInfo.getDatabaseMeta().getName(), connectionInfo.getTableName()));
     }
+    return source;
+  }
 
+  /**
+   * Reads the domain of the source into the model and registers its lineage. Does not touch the UI.
+   */
+  private static ModelerWorkspace populateModel(ModelerWorkspace model, KettleModelerSource source) throws ModelerException {
     Domain d = source.generateDomain();
 
     model.setModelSource(source);
-    model.setModelName(connectionInfo.getTableName());
+    model.setModelName(source.getTableName());
     model.setDomain(d);
 
     RegistryFactory factory = RegistryFactory.getInstance();
@@ -356,25 +410,125 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
   }
 
 
+  /**
+   * Opens a modeler tab for the selected step or job entry once its model has been read in the background.
+   */
   public void createModelerTab() throws ModelerException {
-    ModelerWorkspace model = createModelerWorkspace();
-    
-    populateModel(model);
-    
-    AgileBiModelerPerspective.getInstance().createTabForModel(model, MODELER_NAME);
+    final KettleModelerSource source = createSourceForActiveEntry();
     
+    populateInBackground(new ModelPopulation() {
+      public void populate(ModelerWorkspace model) throws ModelerException {
+        populateModel(model, source);
+      }
+
+      public void modelReady(ModelerWorkspace model) throws Exception {
+        AgileBiModelerPerspective.getInstance().createTabForModel(model, MODELER_NAME);
+        SpoonPerspectiveManager.getInstance().activatePerspective(AgileBiModelerPerspective.class);
+      }
+    });
   }
   
-  public void createModelerTabFromSource( IModelerSource source ) throws ModelerException {
+  public void createModelerTabFromSource( final IModelerSource source ) throws ModelerException {
 
-    Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    final Spoon spoon = ((Spoon)SpoonFactory.getInstance());
 
-    ModelerWorkspace model = createModelerWorkspace();
-    model.setModelSource(source);
-    ModelerWorkspaceUtil.populateModelFromSource(model, source);
-    
-    // create unique name
-    AgileBiModelerPerspective.getInstance().createTabForModel(model, getUniqueUntitledTabName(spoon, MODELER_NAME));
+    populateInBackground(new ModelPopulation() {
+      public void populate(ModelerWorkspace model) throws ModelerException {
+        model.setModelSource(source);
+        ModelerWorkspaceUtil.populateModelFromSource(model, source);
+      }
+
+      public void modelReady(ModelerWorkspace model) throws Exception {
+        // create unique name
+        AgileBiModelerPerspective.getInstance().createTabForModel(model, getUniqueUntitledTabName(spoon, MODELER_NAME));
+      }
+    });
+  }
+
+  /**
+   * Populates a new model from the database off the UI thread, behind a wait box the user can cancel, and hands it to
+   * {@link ModelPopulation#modelReady(ModelerWorkspace)} on the UI thread. A canceled population still finishes
+   * reading, since the JDBC metadata calls cannot be interrupted, but its model is dropped.
+   */
+  public void populateInBackground(final ModelPopulation population) {
+    final Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    final Display display = spoon.getShell().getDisplay();
+    try {
+      Document document = spoon.getMainSpoonContainer().getDocumentRoot();
+      XulWaitBox box = (XulWaitBox) document.createElement("waitbox"); //$NON-NLS-1$
+      box.setIndeterminate(true);
+      box.setCanCancel(true);
+      box.setTitle(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_title"));
+      box.setMessage(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_message"));
+      box.setCancelLabel(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_btn"));
+      box.setDialogParent(spoon.getShell());
+      box.setRunnable(new WaitBoxRunnable(box){
+        private volatile boolean canceled = false;
+
+        @Override
+        public void run() {
+          Exception failure = null;
+          final ModelerWorkspace model = createModelerWorkspace();
+          try {
+            population.populate(model);
+          } catch (Exception e) {
+            failure = e;
+          }
+          if (canceled) {
+            return;
+          }
+          waitBox.stop();
+          final Exception error = failure;
+          display.asyncExec(new Runnable() {
+            public void run() {
+              if (error != null) {
+                showPopulationError(error);
+                return;
+              }
+              try {
+                population.modelReady(model);
+              } catch (Exception e) {
+                showPopulationError(e);
+              }
+            }
+          });
+        }
+
+        @Override
+        public void cancel() {
+          canceled = true;
+          waitBox.stop();
+        }
+      });
+      box.start();
+    } catch (XulException e) {
+      showPopulationError(e);
+    }
+  }
+
+  private static void showPopulationError(Exception e) {
+    if (e instanceof ModelerException) {
+      showFriendlyModelerException((ModelerException) e);
+    } else {
+      logger.error("Error creating model", e);
+      new ErrorDialog(((Spoon) SpoonFactory.getInstance()).getShell(), "Error", "Error creating Modeler", e);
+    }
+  }
+
+  /**
+   * Work for {@link ModelerHelper#populateInBackground(ModelPopulation)}.
+   */
+  public interface ModelPopulation {
+
+    /**
+     * Reads the model's domain. Called off the UI thread, so it must not use Spoon's selection or widgets.
+     */
+    void populate(ModelerWorkspace model) throws ModelerException;
+
+    /**
+     * Called on the UI thread with the populated model, unless the user canceled.
+     */
+    void modelReady(ModelerWorkspace model) throws Exception;
   }
 
   // TODO: replace this code after M1
@@ -417,7 +571,6 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
 
     try{
       ModelerHelper.getInstance().createModelerTab();
-      SpoonPerspectiveManager.getInstance().activatePerspective(AgileBiModelerPerspective.class);
     } catch (ModelerException e) {
       showFriendlyModelerException(e);
     } catch(Exception e){
@@ -431,22 +584,23 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     if( spoon.getSelectionObject() instanceof DatabaseMeta ) {
       final DatabaseMeta databaseMeta = (DatabaseMeta) spoon.getSelectionObject();
       
-      DatabaseExplorerDialog std = new DatabaseExplorerDialog(spoon.getShell(), SWT.NONE, databaseMeta, new ArrayList<DatabaseMeta>());
-      if (std.open()) {
+      String[] schemaAndTable = exploreTable(spoon, databaseMeta);
+      if (!Const.isEmpty(schemaAndTable[1])) {
           
-        TableModelerSource source = new TableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName() == null ? "" : std.getSchemaName() ); //$NON-NLS-1$
+        final TableModelerSource source = new TableModelerSource( databaseMeta, schemaAndTable[1], schemaAndTable[0] == null ? "" : schemaAndTable[0] ); //$NON-NLS-1$
         if( source.getSchemaName() == null ) {
           source.setSchemaName(""); //$NON-NLS-1$
         }
 
-        try{
-          ModelerWorkspace model = createModelerWorkspace();
-          ModelerWorkspaceUtil.populateModelFromSource(model, source);
-          quickVisualize( model );
-        } catch(Exception e){
-          logger.error("Error opening visualization", e);
-          new ErrorDialog(((Spoon) SpoonFactory.getInstance()).getShell(), "Error", "Error executing Quick Visualize", e);
-        }
+        populateInBackground(new ModelPopulation() {
+          public void populate(ModelerWorkspace model) throws ModelerException {
+            ModelerWorkspaceUtil.populateModelFromSource(model, source);
+          }
+
+          public void modelReady(ModelerWorkspace model) throws Exception {
+            quickVisualize( model );
+          }
+        });
       }
     }
   }
@@ -457,14 +611,18 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     }
 
     try{
-      ModelerWorkspace model = createModelerWorkspace();
-      populateModel(model);
-      quickVisualize( model );
+      final KettleModelerSource source = createSourceForActiveEntry();
+      populateInBackground(new ModelPopulation() {
+        public void populate(ModelerWorkspace model) throws ModelerException {
+          populateModel(model, source);
+        }
+
+        public void modelReady(ModelerWorkspace model) throws Exception {
+          quickVisualize( model );
+        }
+      });
     } catch (ModelerException e) {
       showFriendlyModelerException(e);
-    } catch(Exception e){
-      logger.error("Error visualizing", e);
-      new ErrorDialog(((Spoon) SpoonFactory.getInstance()).getShell(), "Error", "Error creating visualization", e);
     }
 
   }
@@ -512,6 +670,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
               engineBoot.start();
             }
             createTemporaryModel(model, true, true);
+            awaitTemporaryModel(model.getFileName());
             EmbeddedWizard wizard = new EmbeddedWizard(model, true);
             waitBox.stop();
             wizard.run(null);
@@ -578,22 +737,8 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
 
   public String createTemporaryModel(ModelerWorkspace model, boolean saveName, boolean autoModel) throws ModelerException {
     //give it a temporary name
-    File modelsDir = new File(TEMP_MODELS_FOLDER); //$NON-NLS-1$
-    modelsDir.mkdirs();
-    int idx = 1;
-    boolean looking = true;
-    File modelFile;
-    String fileName = ""; //$NON-NLS-1$
-    String modelName = ""; //$NON-NLS-1$
-    while( looking ) {
-      modelName = "Model "+idx; //$NON-NLS-1$
-      fileName = TEMP_MODELS_FOLDER + "/" + modelName+".xmi"; //$NON-NLS-1$ //$NON-NLS-2$
-      modelFile = new File(fileName);
-      if( !modelFile.exists() ) {
-        looking = false;
-      }
-      idx++;
-    }
+    String modelName = nextTemporaryModelName();
+    String fileName = TEMP_MODELS_FOLDER + "/" + modelName+".xmi"; //$NON-NLS-1$ //$NON-NLS-2$
     if(saveName){
       model.setFileName(fileName);
     }
@@ -602,7 +747,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       model.getWorkspaceHelper().autoModelFlat(model);
     }
     model.getWorkspaceHelper().populateDomain(model);
-    ModelerWorkspaceUtil.saveWorkspace( model, fileName);
+    writeTemporaryModel(model.getDomain(), fileName);
     
     /*
     // link the model to the transformation
@@ -617,44 +762,234 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     return fileName;
   }
   
+  /**
+   * Copies the model into a new temporary workspace. Its XMI file is written in the background for the consumers that
+   * read it from disk, which call {@link #awaitTemporaryModel(String)} first.
+   */
   public ModelerWorkspace clone(ModelerWorkspace model) throws ModelerException{
-    String fileName = createTemporaryModel(model, false, false);
-    
+    String modelName = nextTemporaryModelName();
+    String fileName = TEMP_MODELS_FOLDER + "/" + modelName+".xmi"; //$NON-NLS-1$ //$NON-NLS-2$
     ModelerWorkspace newModel = createModelerWorkspace();
-    
+    String xmi = copyInto(model, newModel, modelName, fileName);
+    writeTemporaryXmi(xmi, fileName);
+    return newModel;
+  }
+
+  /**
+   * Loads a copy of the model into an empty temporary workspace from XMI generated in memory, the same way a saved
+   * model is opened, so the model source, connection and model trees are rebuilt from the domain.
+   *
+   * @return the XMI of the copy
+   */
+  static String copyInto(ModelerWorkspace model, ModelerWorkspace newModel, String modelName, String fileName)
+    throws ModelerException {
+    model.setModelName(modelName);
+    model.getWorkspaceHelper().populateDomain(model);
+    String xmi = new XmiParser().generateXmi(model.getDomain());
+
     newModel.setTemporary(true);
     newModel.setDirty(false);
-    String xml;
+    ModelerWorkspaceUtil.loadWorkspace(fileName, xmi, newModel);
+    return xmi;
+  }
+
+  /**
+   * Blocks until the temporary model file has been written, if it is still being written.
+   */
+  public static void awaitTemporaryModel(String fileName) throws ModelerException {
+    Future<?> write = fileName == null ? null : temporaryModelWrites.get(fileName);
+    if (write == null) {
+      return;
+    }
     try {
-      xml = new String(IOUtils.toByteArray(new FileInputStream(new File(fileName))), "UTF-8");
-      ModelerWorkspaceUtil.loadWorkspace(fileName, xml, newModel);
-    } catch (Exception e) {
+      write.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       throw new ModelerException(e);
-    } //$NON-NLS-1$
-    return newModel;
+    } catch (ExecutionException e) {
+      throw new ModelerException(e.getCause());
+    }
+  }
+
+  private static String nextTemporaryModelName() {
+    new File(TEMP_MODELS_FOLDER).mkdirs();
+    String modelName;
+    do {
+      modelName = "Model " + temporaryModelIndex.incrementAndGet(); //$NON-NLS-1$
+    } while (new File(TEMP_MODELS_FOLDER + "/" + modelName + ".xmi").exists()); //$NON-NLS-1$ //$NON-NLS-2$
+    return modelName;
+  }
+
+  /**
+   * Writes the domain's XMI on the temporary model writer thread, from a copy so the workspace may change meanwhile.
+   */
+  private static void writeTemporaryModel(Domain domain, String fileName) {
+    final Domain copy;
+    try {
+      copy = copyDomain(serializeDomain(domain));
+    } catch (ModelerException e) {
+      // a concept property value that is not Serializable, generate the XMI right away instead
+      writeTemporaryXmi(new XmiParser().generateXmi(domain), fileName);
+      return;
+    }
+    submitTemporaryModelWrite(fileName, new Callable<String>() {
+      public String call() {
+        return new XmiParser().generateXmi(copy);
+      }
+    });
+  }
+
+  private static void writeTemporaryXmi(final String xmi, String fileName) {
+    submitTemporaryModelWrite(fileName, new Callable<String>() {
+      public String call() {
+        return xmi;
+      }
+    });
+  }
+
+  private static void submitTemporaryModelWrite(final String fileName, final Callable<String> xmiSource) {
+    FutureTask<Void> write = new FutureTask<Void>(new Callable<Void>() {
+      public Void call() throws Exception {
+        try {
+          String xmi = xmiSource.call();
+          FileOutputStream out = new FileOutputStream(fileName);
+          try {
+            IOUtils.write(xmi, out, "UTF-8"); //$NON-NLS-1$
+          } finally {
+            out.close();
+          }
+        } catch (Exception e) {
+          // left registered so awaitTemporaryModel reports it
+          logger.error("Error writing temporary model " + fileName, e); //$NON-NLS-1$
+          throw e;
+        }
+        temporaryModelWrites.remove(fileName);
+        return null;
+      }
+    });
+    temporaryModelWrites.put(fileName, write);
+    temporaryModelWriter.execute(write);
+  }
+
+  static byte[] serializeDomain(Domain domain) throws ModelerException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(domain);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new ModelerException(e);
+    }
+  }
+
+  static Domain copyDomain(byte[] snapshot) throws ModelerException {
+    try {
+      // resolve through this plugin's class loader, which sees the metadata classes
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(snapshot)) {
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+          try {
+            return Class.forName(desc.getName(), false, ModelerHelper.class.getClassLoader());
+          } catch (ClassNotFoundException e) {
+            return super.resolveClass(desc);
+          }
+        }
+      };
+      try {
+        return (Domain) in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new ModelerException(e);
+    } catch (ClassNotFoundException e) {
+      throw new ModelerException(e);
+    }
   }
   
   public void databaseModelItem() {
-    Spoon spoon = ((Spoon)SpoonFactory.getInstance());
+    final Spoon spoon = ((Spoon)SpoonFactory.getInstance());
     if( spoon.getSelectionObject() instanceof DatabaseMeta ) {
       final DatabaseMeta databaseMeta = (DatabaseMeta) spoon.getSelectionObject();
       
-      DatabaseExplorerDialog std = new DatabaseExplorerDialog(spoon.getShell(), SWT.NONE, databaseMeta, new ArrayList<DatabaseMeta>());
-      if (std.open()) {
+      String[] schemaAndTable = exploreTable(spoon, databaseMeta);
+      if (!Const.isEmpty(schemaAndTable[1])) {
           
-        TableModelerSource source = new TableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName());
-        try{
-          ModelerWorkspace model = createModelerWorkspace();
-          ModelerWorkspaceUtil.populateModelFromSource(model, source);
-          AgileBiModelerPerspective.getInstance().createTabForModel(model, getUniqueUntitledTabName(spoon, MODELER_NAME));
-        } catch(Exception e){
-          logger.error("Error creating model", e);
-          new ErrorDialog(((Spoon) SpoonFactory.getInstance()).getShell(), "Error", "Error creating Modeler", e);
-        }
+        final TableModelerSource source = new TableModelerSource( databaseMeta, schemaAndTable[1], schemaAndTable[0]);
+        populateInBackground(new ModelPopulation() {
+          public void populate(ModelerWorkspace model) throws ModelerException {
+            ModelerWorkspaceUtil.populateModelFromSource(model, source);
+          }
+
+          public void modelReady(ModelerWorkspace model) throws Exception {
+            AgileBiModelerPerspective.getInstance().createTabForModel(model, getUniqueUntitledTabName(spoon, MODELER_NAME));
+          }
+        });
       }
     }
   }  
   
+  /**
+   * Lets the user pick a table of the connection. Uses the connection's catalog snapshot when there is one, and the
+   * live database explorer while the first snapshot is still being read. The snapshot list also offers to refresh the
+   * snapshot right away or to browse the database live instead.
+   *
+   * @return the schema and table name; the table is empty if the user canceled
+   */
+  public static String[] exploreTable(Spoon spoon, DatabaseMeta databaseMeta) {
+    CatalogSnapshotManager.Catalog catalog = CatalogSnapshotManager.getInstance().getCatalog(databaseMeta);
+    while (catalog != null) {
+      List<CatalogSnapshotManager.Table> tables = catalog.getTables();
+      String[] names = new String[tables.size() + 2];
+      names[0] = BaseMessages.getString(ModelerHelper.class, "CatalogSnapshot.SelectTable.Refresh"); //$NON-NLS-1$
+      names[1] = BaseMessages.getString(ModelerHelper.class, "CatalogSnapshot.SelectTable.BrowseLive"); //$NON-NLS-1$
+      for (int i = 0; i < tables.size(); i++) {
+        CatalogSnapshotManager.Table table = tables.get(i);
+        names[i + 2] = Const.isEmpty(table.getSchema()) ? table.getName() : table.getSchema() + "." + table.getName(); //$NON-NLS-1$
+      }
+      EnterSelectionDialog dialog = new EnterSelectionDialog(spoon.getShell(), names,
+          BaseMessages.getString(ModelerHelper.class, "CatalogSnapshot.SelectTable.Title"), //$NON-NLS-1$
+          BaseMessages.getString(ModelerHelper.class, "CatalogSnapshot.SelectTable.Message", databaseMeta.getName(), //$NON-NLS-1$
+              new Date(catalog.getRefreshed()).toString()));
+      if (dialog.open() == null || dialog.getSelectionNr() < 0) {
+        return new String[2];
+      }
+      if (dialog.getSelectionNr() == 0) {
+        catalog = refreshCatalog(spoon, databaseMeta);
+      } else if (dialog.getSelectionNr() == 1) {
+        break;
+      } else {
+        CatalogSnapshotManager.Table table = tables.get(dialog.getSelectionNr() - 2);
+        return new String[] { table.getSchema(), table.getName() };
+      }
+    }
+    String[] schemaAndTable = new SpoonDBDelegate(spoon).exploreDB(databaseMeta, false);
+    return schemaAndTable == null ? new String[2] : schemaAndTable;
+  }
+
+  /**
+   * @return the refreshed snapshot, or null if it could not be read
+   */
+  private static CatalogSnapshotManager.Catalog refreshCatalog(Spoon spoon, final DatabaseMeta databaseMeta) {
+    final CatalogSnapshotManager.Catalog[] catalog = new CatalogSnapshotManager.Catalog[1];
+    final KettleException[] error = new KettleException[1];
+    BusyIndicator.showWhile(spoon.getDisplay(), new Runnable() {
+      public void run() {
+        try {
+          catalog[0] = CatalogSnapshotManager.getInstance().refresh(databaseMeta);
+        } catch (KettleException e) {
+          error[0] = e;
+        }
+      }
+    });
+    if (error[0] != null) {
+      new ErrorDialog(spoon.getShell(), BaseMessages.getString(ModelerHelper.class, "CatalogSnapshot.SelectTable.Title"), //$NON-NLS-1$
+          BaseMessages.getString(ModelerHelper.class, "CatalogSnapshot.Refresh.Error", databaseMeta.getName()), error[0]); //$NON-NLS-1$
+    }
+    return catalog[0];
+  }
+
   public void createEmptyModel() {
     try {
       ModelerWorkspace model = createModelerWorkspace();
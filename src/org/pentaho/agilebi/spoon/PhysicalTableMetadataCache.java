@@ -0,0 +1,257 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.agilebi.modeler.util.ModelerSourceUtil;
+import org.pentaho.agilebi.platform.AgileBiPlatformConfig;
+import org.pentaho.agilebi.platform.InstaviewDatasourceService;
+import org.pentaho.di.base.AbstractMeta;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleDatabaseException;
+import org.pentaho.di.core.listeners.ContentChangedListener;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.metadata.model.Domain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the domains generated from physical tables, so modeling the same table again does not repeat the catalog
+ * queries. Entries are keyed by the connection fingerprint, schema and table, expire after a configurable time, and
+ * are dropped when the transformation populating the table is edited or run. Every lookup returns a private copy.
+ */
+public class PhysicalTableMetadataCache {
+
+  public static final String TTL = "modeler.table-metadata-cache.ttl-ms"; //$NON-NLS-1$
+
+  public static final String MAX_ENTRIES = "modeler.table-metadata-cache.max-entries"; //$NON-NLS-1$
+
+  private static final long DEFAULT_TTL = 10 * 60 * 1000L;
+
+  private static final int DEFAULT_MAX_ENTRIES = 100;
+
+  private static Logger logger = LoggerFactory.getLogger(PhysicalTableMetadataCache.class);
+
+  private static PhysicalTableMetadataCache instance = null;
+
+  private final long ttl;
+
+  private final int maxEntries;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  public static synchronized PhysicalTableMetadataCache getInstance() {
+    if (instance == null) {
+      AgileBiPlatformConfig platformConfig = AgileBiPlatformConfig.getInstance();
+      instance = new PhysicalTableMetadataCache(platformConfig.getLong(TTL, DEFAULT_TTL),
+          platformConfig.getInt(MAX_ENTRIES, DEFAULT_MAX_ENTRIES));
+    }
+    return instance;
+  }
+
+  PhysicalTableMetadataCache(long ttl, int maxEntries) {
+    this.ttl = ttl;
+    this.maxEntries = maxEntries;
+  }
+
+  public boolean isEnabled() {
+    return ttl > 0 && maxEntries > 0;
+  }
+
+  /**
+   * Returns the domain for the table, generating it from the database when it is not cached or has expired.
+   *
+   * @param populator identifies the transformation or job populating the table, see {@link #getPopulatorId}; may be
+   *          {@code null}
+   */
+  public Domain generateDomain(DatabaseMeta databaseMeta, String schemaName, String tableName, String populator)
+      throws ModelerException {
+    if (!isEnabled()) {
+      return ModelerSourceUtil.generateDomain(databaseMeta, schemaName, tableName);
+    }
+    String key;
+    try {
+      key = getKey(databaseMeta, schemaName, tableName);
+    } catch (KettleDatabaseException e) {
+      return ModelerSourceUtil.generateDomain(databaseMeta, schemaName, tableName);
+    }
+    Domain cached = get(key);
+    if (cached != null) {
+      return cached;
+    }
+    Domain domain = ModelerSourceUtil.generateDomain(databaseMeta, schemaName, tableName);
+    put(key, domain, populator);
+    return domain;
+  }
+
+  Domain get(String key) throws ModelerException {
+    byte[] snapshot;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (now() - entry.created >= ttl) {
+        entries.remove(key);
+        return null;
+      }
+      snapshot = entry.snapshot;
+    }
+    return ModelerHelper.copyDomain(snapshot);
+  }
+
+  /**
+   * @return false if the domain could not be cached because a concept property value is not Serializable
+   */
+  boolean put(String key, Domain domain, String populator) {
+    Entry entry;
+    try {
+      entry = new Entry(ModelerHelper.serializeDomain(domain), populator, now());
+    } catch (ModelerException e) {
+      logger.debug("Not caching the domain of " + key, e); //$NON-NLS-1$
+      return false;
+    }
+    synchronized (this) {
+      entries.put(key, entry);
+      Iterator<Entry> it = entries.values().iterator();
+      while (entries.size() > maxEntries && it.hasNext()) {
+        it.next();
+        it.remove();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drops the cached domain of one table.
+   */
+  public void invalidate(DatabaseMeta databaseMeta, String schemaName, String tableName) {
+    try {
+      invalidate(getKey(databaseMeta, schemaName, tableName));
+    } catch (KettleDatabaseException e) {
+      // never cached either
+    }
+  }
+
+  synchronized void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Drops the cached domains of every table the transformation or job populates.
+   *
+   * @return the number of entries dropped
+   */
+  public synchronized int invalidatePopulator(String populator) {
+    if (populator == null) {
+      return 0;
+    }
+    int dropped = 0;
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      if (populator.equals(it.next().populator)) {
+        it.remove();
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Invalidates the tables a transformation or job populates whenever it is edited. Registers at most one listener per
+   * transformation or job.
+   */
+  public static void watchPopulator(AbstractMeta meta) {
+    synchronized (meta) {
+      for (ContentChangedListener listener : meta.getContentChangedListeners()) {
+        if (listener instanceof PopulatorChangeListener) {
+          return;
+        }
+      }
+      meta.addContentChangedListener(new PopulatorChangeListener(meta));
+    }
+  }
+
+  static String getPopulatorId(AbstractMeta meta) {
+    Repository repository = meta.getRepository();
+    return getPopulatorId(repository == null ? null : repository.getName(), meta.getFilename(), meta.getName());
+  }
+
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  static String getKey(DatabaseMeta databaseMeta, String schemaName, String tableName) throws KettleDatabaseException {
+    return InstaviewDatasourceService.getConnectionFingerprint(databaseMeta) + '|' + Const.NVL(schemaName, "") + '|' //$NON-NLS-1$
+        + Const.NVL(tableName, ""); //$NON-NLS-1$
+  }
+
+  /**
+   * Identifies a transformation or job the way both the modeler sources and the Kettle events see it: by repository
+   * and file name, or by name while it has not been saved.
+   */
+  public static String getPopulatorId(String repositoryName, String filename, String name) {
+    return Const.NVL(repositoryName, "") + '|' + (Const.isEmpty(filename) ? Const.NVL(name, "") : filename); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private static class PopulatorChangeListener implements ContentChangedListener {
+
+    private final AbstractMeta meta;
+
+    PopulatorChangeListener(AbstractMeta meta) {
+      this.meta = meta;
+    }
+
+    public void contentChanged(Object parentObject) {
+      getInstance().invalidatePopulator(getPopulatorId(meta));
+    }
+
+    public void contentSafe(Object parentObject) {
+    }
+
+  }
+
+  private static class Entry {
+
+    final byte[] snapshot;
+
+    final String populator;
+
+    final long created;
+
+    Entry(byte[] snapshot, String populator, long created) {
+      this.snapshot = snapshot;
+      this.populator = populator;
+      this.created = created;
+    }
+
+  }
+
+}
@@ -21,9 +21,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
 import org.eclipse.swt.widgets.Display;
 import org.pentaho.agilebi.modeler.BaseModelerWorkspaceHelper;
 import org.pentaho.agilebi.modeler.IModelerWorkspaceHelper;
@@ -38,7 +51,12 @@ import org.pentaho.agilebi.modeler.nodes.RelationalModelNode;
 import org.pentaho.agilebi.modeler.strategy.AutoModelStrategy;
 import org.pentaho.agilebi.modeler.strategy.SimpleAutoModelStrategy;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceHelper;
+import org.pentaho.agilebi.platform.AgileBiPlatformConfig;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.ui.core.dialog.ErrorDialog;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * User: nbaker Date: Jul 14, 2010
@@ -50,6 +68,44 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
   final GeoContext geoContext;
   private static final String GEO_CONFIG_FILE_LOCATION = "plugins/spoon/agile-bi/geoRoles.properties"; //$NON-NLS-1$
 
+  // contents of geoRoles.properties, each caller gets its own GeoContext built from them
+  private static Properties geoProperties;
+
+  private static Logger logger = LoggerFactory.getLogger( SpoonModelerWorkspaceHelper.class );
+
+  /**
+   * Shared by all workspaces, sized by modeler.auto-model.threads in agile-bi-platform.properties.
+   */
+  private static final ExecutorService executor = createExecutor();
+
+  // latest queued job per workspace and kind, and the lock per workspace that keeps its jobs apart; the workspace
+  // is not thread-safe, so its OLAP and relational jobs run one after the other as in autoModelFlat
+  private static final Map<ModelerWorkspace, Map<String, Future<?>>> pending =
+    new WeakHashMap<ModelerWorkspace, Map<String, Future<?>>>();
+
+  private static final Map<ModelerWorkspace, Object> locks = new WeakHashMap<ModelerWorkspace, Object>();
+
+  private static final List<AutoModelListener> listeners = new CopyOnWriteArrayList<AutoModelListener>();
+
+  // modification time of the file geoProperties was read from, 0 when it did not exist
+  private static long geoPropertiesLastModified = -1;
+
+  private static ExecutorService createExecutor() {
+    int threads = Math.max( 1, AgileBiPlatformConfig.getInstance().getInt( "modeler.auto-model.threads", 2 ) ); //$NON-NLS-1$
+    ThreadPoolExecutor pool = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread( Runnable r ) {
+          Thread thread = new Thread( r, "agilebi-auto-model-" + count.incrementAndGet() ); //$NON-NLS-1$
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    pool.allowCoreThreadTimeOut( true );
+    return pool;
+  }
+
   public SpoonModelerWorkspaceHelper() {
     this( initGeoContext() );
   }
@@ -69,6 +125,7 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
   public void autoModelFlat( ModelerWorkspace workspace ) throws ModelerException {
     workspace.setGeoContext( this.geoContext );
     final AutoModelStrategy strategy = getAutoModelStrategy();
+    // one after the other, the strategies share the workspace, which is not thread-safe
     strategy.autoModelOlap( workspace, workspace.getModel() );
     strategy.autoModelRelational( workspace, workspace.getRelationalModel() );
   }
@@ -85,30 +142,23 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
     final AutoModelStrategy strategy = getAutoModelStrategy();
 
     final Display display = Display.findDisplay( Thread.currentThread() );
-    Runnable worker = new Runnable() {
+    submit( ws, AutoModelListener.OLAP, display, new AutoModelJob() {
 
-      public void run() {
-        final boolean prevChangeState = ws.isModelChanging();
-        try {
-
-          MainModelNode node = ws.getModel();
-          node.setSupressEvents( true );
-          strategy.autoModelOlap( ws, node );
-        } catch ( ModelerException e ) {
-        }
-        display.syncExec( new Runnable() {
+      private boolean prevChangeState;
 
-          public void run() {
-            ws.getModel().setSupressEvents( false );
-            ws.setModelIsChanging( prevChangeState, true );
-            ws.setSelectedNode( ws.getModel() );
-          }
-        } );
+      public void run() throws ModelerException {
+        prevChangeState = ws.isModelChanging();
+        MainModelNode node = ws.getModel();
+        node.setSupressEvents( true );
+        strategy.autoModelOlap( ws, node );
       }
-    };
-    new Thread( worker ).start();
-
 
+      public void done() {
+        ws.getModel().setSupressEvents( false );
+        ws.setModelIsChanging( prevChangeState, true );
+        ws.setSelectedNode( ws.getModel() );
+      }
+    } );
   }
 
   /**
@@ -132,27 +182,167 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
     final AutoModelStrategy strategy = getAutoModelStrategy();
 
     final Display display = Display.findDisplay( Thread.currentThread() );
-    Runnable worker = new Runnable() {
+    submit( workspace, AutoModelListener.RELATIONAL, display, new AutoModelJob() {
+
+      private boolean prevChangeState;
 
+      public void run() throws ModelerException {
+        prevChangeState = workspace.isModelChanging();
+        RelationalModelNode node = workspace.getRelationalModel();
+        node.setSupressEvents( true );
+        strategy.autoModelRelational( workspace, node );
+      }
+
+      public void done() {
+        workspace.getRelationalModel().setSupressEvents( false );
+        workspace.setRelationalModelIsChanging( prevChangeState, true );
+        workspace.setSelectedRelationalNode( workspace.getRelationalModel() );
+      }
+    } );
+  }
+
+  /**
+   * Cancels the background auto-modeling of a workspace that has not started yet. A run already in progress
+   * completes, since the modeling strategies cannot be interrupted.
+   */
+  public static void cancelAutoModeling( ModelerWorkspace workspace ) {
+    synchronized ( pending ) {
+      Map<String, Future<?>> tasks = pending.remove( workspace );
+      if ( tasks != null ) {
+        for ( Future<?> task : tasks.values() ) {
+          task.cancel( false );
+        }
+      }
+    }
+  }
+
+  public static void addAutoModelListener( AutoModelListener listener ) {
+    listeners.add( listener );
+  }
+
+  public static void removeAutoModelListener( AutoModelListener listener ) {
+    listeners.remove( listener );
+  }
+
+  /**
+   * Queues a background auto-modeling job. A job of the same kind still waiting for the same workspace is dropped in
+   * favour of this one, and jobs on one workspace never run at the same time, whatever their kind. Jobs on different
+   * workspaces run in parallel.
+   */
+  private static void submit( final ModelerWorkspace workspace, final String kind, final Display display,
+                              final AutoModelJob job ) {
+    final Object lock;
+    synchronized ( pending ) {
+      if ( !locks.containsKey( workspace ) ) {
+        locks.put( workspace, new Object() );
+      }
+      lock = locks.get( workspace );
+    }
+
+    final FutureTask<Void> task = new FutureTask<Void>( new Runnable() {
       public void run() {
-        final boolean prevChangeState = workspace.isModelChanging();
-        try {
-          RelationalModelNode node = workspace.getRelationalModel();
-          node.setSupressEvents( true );
-          strategy.autoModelRelational( workspace, node );
-        } catch ( ModelerException e ) {
+        synchronized ( lock ) {
+          ModelerException failure = null;
+          fireEvent( workspace, kind, null, true );
+          try {
+            job.run();
+          } catch ( ModelerException e ) {
+            failure = e;
+          } catch ( RuntimeException e ) {
+            failure = new ModelerException( e );
+          }
+          final ModelerException error = failure;
+          Runnable finish = new Runnable() {
+            public void run() {
+              job.done();
+              if ( error != null ) {
+                reportFailure( display, error );
+              }
+            }
+          };
+          if ( display != null && !display.isDisposed() ) {
+            display.syncExec( finish );
+          } else {
+            finish.run();
+          }
+          fireEvent( workspace, kind, error, false );
         }
-        display.syncExec( new Runnable() {
+      }
+    }, null );
 
-          public void run() {
-            workspace.getRelationalModel().setSupressEvents( false );
-            workspace.setRelationalModelIsChanging( prevChangeState, true );
-            workspace.setSelectedRelationalNode( workspace.getRelationalModel() );
+    synchronized ( pending ) {
+      Map<String, Future<?>> tasks = pending.get( workspace );
+      if ( tasks == null ) {
+        tasks = new HashMap<String, Future<?>>();
+        pending.put( workspace, tasks );
+      }
+      Future<?> previous = tasks.put( kind, task );
+      if ( previous != null ) {
+        // superseded; harmless if it is already running
+        previous.cancel( false );
+      }
+    }
+    executor.execute( new Runnable() {
+      public void run() {
+        task.run();
+        synchronized ( pending ) {
+          Map<String, Future<?>> tasks = pending.get( workspace );
+          if ( tasks != null && tasks.get( kind ) == task ) {
+            tasks.remove( kind );
           }
-        } );
+        }
       }
-    };
-    new Thread( worker ).start();
+    } );
+  }
+
+  private static void fireEvent( ModelerWorkspace workspace, String kind, ModelerException error, boolean started ) {
+    for ( AutoModelListener listener : listeners ) {
+      try {
+        if ( started ) {
+          listener.autoModelStarted( workspace, kind );
+        } else if ( error == null ) {
+          listener.autoModelFinished( workspace, kind );
+        } else {
+          listener.autoModelFailed( workspace, kind, error );
+        }
+      } catch ( RuntimeException e ) {
+        logger.error( "Auto-model listener failed", e ); //$NON-NLS-1$
+      }
+    }
+  }
+
+  private static void reportFailure( Display display, ModelerException error ) {
+    logger.error( "Auto-modeling failed", error ); //$NON-NLS-1$
+    if ( display != null && !display.isDisposed() && display.getActiveShell() != null ) {
+      new ErrorDialog( display.getActiveShell(), BaseMessages.getString( SpoonModelerWorkspaceHelper.class,
+        "AutoModel.Error.Title" ), BaseMessages.getString( SpoonModelerWorkspaceHelper.class, //$NON-NLS-1$
+        "AutoModel.Error.Message" ), error ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Work of a background auto-modeling request: {@link #run()} on the executor, then {@link #done()} on the UI
+   * thread, also when run failed.
+   */
+  private interface AutoModelJob {
+    void run() throws ModelerException;
+
+    void done();
+  }
+
+  /**
+   * Notified, on the auto-modeling thread, as background auto-modeling starts and ends, e.g. to show progress.
+   */
+  public interface AutoModelListener {
+    String OLAP = "olap"; //$NON-NLS-1$
+
+    String RELATIONAL = "relational"; //$NON-NLS-1$
+
+    void autoModelStarted( ModelerWorkspace workspace, String kind );
+
+    void autoModelFinished( ModelerWorkspace workspace, String kind );
+
+    void autoModelFailed( ModelerWorkspace workspace, String kind, ModelerException e );
   }
 
   @Override
@@ -198,17 +388,45 @@ public class SpoonModelerWorkspaceHelper extends BaseModelerWorkspaceHelper impl
     return strategy;
   }
 
+  /**
+   * Returns the geo roles configured in geoRoles.properties. The file is only read again after its modification time
+   * changes; each call builds a new context from it, so a workspace editing its geo roles does not affect the others.
+   *
+   * @return a new context, or null if the file is missing or cannot be read
+   */
   public static GeoContext initGeoContext() {
+    Properties props;
+    synchronized ( SpoonModelerWorkspaceHelper.class ) {
+      long lastModified = new File( GEO_CONFIG_FILE_LOCATION ).lastModified();
+      if ( geoPropertiesLastModified != lastModified ) {
+        geoProperties = loadGeoProperties();
+        geoPropertiesLastModified = lastModified;
+      }
+      if ( geoProperties == null ) {
+        return null;
+      }
+      props = new Properties();
+      props.putAll( geoProperties );
+    }
+    try {
+      return GeoContextFactory.create( new GeoContextPropertiesProvider( props ) );
+    } catch ( Exception e ) {
+      logger.debug( "Could not read the geo roles from " + GEO_CONFIG_FILE_LOCATION, e ); //$NON-NLS-1$
+      return null;
+    }
+  }
 
+  private static Properties loadGeoProperties() {
+    FileInputStream fis = null;
     try {
-      FileInputStream fis = new FileInputStream( new File( GEO_CONFIG_FILE_LOCATION ) );
+      fis = new FileInputStream( new File( GEO_CONFIG_FILE_LOCATION ) );
       Properties props = new Properties();
       props.load( fis );
-      GeoContextPropertiesProvider config = new GeoContextPropertiesProvider( props );
-
-      return GeoContextFactory.create( config );
+      return props;
     } catch ( Exception e ) {
       //
+    } finally {
+      IOUtils.closeQuietly( fis );
     }
     return null;
   }
@@ -21,6 +21,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.DisposeEvent;
+import org.eclipse.swt.events.DisposeListener;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.MessageBox;
 import org.pentaho.agilebi.modeler.IModelerSource;
 import org.pentaho.agilebi.modeler.ModelerController;
@@ -31,6 +34,7 @@ import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.agilebi.spoon.OutputStepModelerSource;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
 import org.pentaho.agilebi.spoon.publish.PublisherHelper;
@@ -49,7 +53,6 @@ import org.pentaho.di.ui.spoon.MainSpoonPerspective;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.SpoonPerspective;
 import org.pentaho.di.ui.spoon.SpoonPerspectiveManager;
-import org.pentaho.di.ui.spoon.delegates.SpoonDBDelegate;
 import org.pentaho.metadata.model.IPhysicalModel;
 import org.pentaho.metadata.model.IPhysicalTable;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
@@ -143,6 +146,57 @@ public class SpoonModelerController extends ModelerController {
     }
     super.init();
     setModellingMode(ModelerMode.ANALYSIS_AND_REPORTING);
+    watchAutoModeling();
+  }
+
+  /**
+   * Shows the working-in-background cursor over the modeler while its workspace is auto-modeled, and cancels queued
+   * auto-modeling once the modeler is closed.
+   */
+  private void watchAutoModeling() {
+    XulComponent panel = document.getElementById("mainVBox"); //$NON-NLS-1$
+    if (panel == null || !(panel.getManagedObject() instanceof Control)) {
+      return;
+    }
+    final Control control = (Control) panel.getManagedObject();
+    final ModelerWorkspace modelerWorkspace = workspace;
+    final SpoonModelerWorkspaceHelper.AutoModelListener listener = new SpoonModelerWorkspaceHelper.AutoModelListener() {
+      // only touched on the UI thread
+      private int running = 0;
+
+      public void autoModelStarted(ModelerWorkspace ws, String kind) {
+        update(ws, 1);
+      }
+
+      public void autoModelFinished(ModelerWorkspace ws, String kind) {
+        update(ws, -1);
+      }
+
+      public void autoModelFailed(ModelerWorkspace ws, String kind, ModelerException e) {
+        update(ws, -1);
+      }
+
+      private void update(ModelerWorkspace ws, final int delta) {
+        if (ws != modelerWorkspace || control.isDisposed()) {
+          return;
+        }
+        control.getDisplay().asyncExec(new Runnable() {
+          public void run() {
+            if (!control.isDisposed()) {
+              running += delta;
+              control.setCursor(running > 0 ? control.getDisplay().getSystemCursor(SWT.CURSOR_APPSTARTING) : null);
+            }
+          }
+        });
+      }
+    };
+    SpoonModelerWorkspaceHelper.addAutoModelListener(listener);
+    control.addDisposeListener(new DisposeListener() {
+      public void widgetDisposed(DisposeEvent e) {
+        SpoonModelerWorkspaceHelper.removeAutoModelListener(listener);
+        SpoonModelerWorkspaceHelper.cancelAutoModeling(modelerWorkspace);
+      }
+    });
   }
 
   public void editDataSource() {
@@ -197,9 +251,8 @@ public class SpoonModelerController extends ModelerController {
       String theDBName = theDialog.open();
 
       if (theDBName != null) {
-        SpoonDBDelegate theDelegate = new SpoonDBDelegate(theSpoon);
         DatabaseMeta theDBMeta = DatabaseMeta.findDatabase(theDatabasesInterface.getDatabases(), theDBName);
-        String theTableAndSchema[] = theDelegate.exploreDB(theDBMeta, false);
+        String theTableAndSchema[] = ModelerHelper.exploreTable(theSpoon, theDBMeta);
 
         if (StringUtils.isEmpty(theTableAndSchema[1])) {
           MessageBox theMessageBox = new MessageBox(theSpoon.getShell(), SWT.ICON_ERROR | SWT.OK);
@@ -224,6 +277,8 @@ public class SpoonModelerController extends ModelerController {
           }
         }
         if(refresh) {
+          // queued auto-modeling would work on the fields of the old source
+          SpoonModelerWorkspaceHelper.cancelAutoModeling(this.workspace);
           TableModelerSource theSource = new TableModelerSource(theDBMeta, theTableAndSchema[1], theTableAndSchema[0]);
           ModelerWorkspaceUtil.populateModelFromSource(this.workspace, theSource);
           workspace.setSourceName(theTableAndSchema[1]);
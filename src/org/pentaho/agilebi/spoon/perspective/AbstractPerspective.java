@@ -28,6 +28,7 @@ import org.eclipse.swt.widgets.Composite;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.spoon.PDIMessages;
 import org.pentaho.di.core.EngineMetaInterface;
+import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
 import org.pentaho.di.ui.spoon.FileListener;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.SpoonPerspectiveImageProvider;
@@ -146,6 +147,10 @@ public abstract class AbstractPerspective extends AbstractXulEventHandler implem
   public abstract String getPerspectiveIconPath();
   
   public void setActive(boolean active) {
+    if (active) {
+      // the BI platform may have been left uninitialized at startup; get it ready while the user looks around
+      AgileBILifecycleListener.initializePlatformInBackground();
+    }
     for(SpoonPerspectiveListener l : listeners){
       if(active){
         l.onActivation();
@@ -28,6 +28,7 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.platform.StartupTimeline;
 import org.pentaho.di.core.EngineMetaInterface;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
@@ -75,14 +76,19 @@ public class AgileBiInstaPerspective extends AbstractPerspective implements Spoo
   public void onStart() {
     // NO longer specify the theme on the URL, take the server default (specified in pentaho.xml).
     final String locationTemplate = "http://localhost:${port}/pentaho/api/repos/instaview/resources/web/main.html?embedded=true"; //$NON-NLS-1$
+    final StartupTimeline.Phase phase = StartupTimeline.getInstance().begin("AgileBiInstaPerspective.onStart"); //$NON-NLS-1$
 
     display.asyncExec(new Runnable() {
       
       @Override
       public void run() {
-        browser
-            .setSrc(replaceField(locationTemplate, "port", Integer.toString(AgileBILifecycleListener.consolePort), false)); //$NON-NLS-1$ //$NON-NLS-2$
-        perspectiveController.setBrowser(browser);
+        try {
+          browser
+              .setSrc(replaceField(locationTemplate, "port", Integer.toString(AgileBILifecycleListener.consolePort), false)); //$NON-NLS-1$ //$NON-NLS-2$
+          perspectiveController.setBrowser(browser);
+        } finally {
+          phase.end();
+        }
       }
     });
   }
@@ -31,7 +31,7 @@ import org.pentaho.ui.xul.XulException;
 @SpoonPlugin(id = "AgileBiInsta", image = "")
 @SpoonPluginCategories({})
 public class AgileBiSpoonInstaPlugin implements SpoonPluginInterface{
-  private static final String INSTAVIEW_PLATFORM_PLUGIN_ID = "instaview";
+  public static final String INSTAVIEW_PLATFORM_PLUGIN_ID = "instaview";
 
   public void applyToContainer(String category, XulDomContainer container) throws XulException {
      
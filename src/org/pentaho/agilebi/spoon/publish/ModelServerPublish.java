@@ -38,6 +38,7 @@ import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerPerspective;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
+import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.database.IDatabaseDialect;
 import org.pentaho.database.model.DatabaseAccessType;
 import org.pentaho.database.model.DatabaseConnection;
@@ -549,6 +550,7 @@ public class ModelServerPublish {
     if (publishXmi) {
       File theXmi[] = { new File(xmi) };
       //publishFile(theXmiPublishingPath, theXmi, true);
+      ModelerHelper.awaitTemporaryModel(model.getFileName());
       InputStream metadataFile = new FileInputStream(model.getFileName());     
       publishMetaDataFile(metadataFile, model.getDomain().getId() );
     }
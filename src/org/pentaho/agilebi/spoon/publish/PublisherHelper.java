@@ -34,6 +34,7 @@ import org.dom4j.io.XMLWriter;
 import org.jfree.util.Log;
 import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.agilebi.spoon.util.EncodingUtil;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.DatabaseMeta;
@@ -147,6 +148,7 @@ public class PublisherHelper {
           try {
              //need to create and store the XMI file in /tmp first
             String tempXmiFilename =workspace.getModel().getName()+XMI_EXT;
+            ModelerHelper.awaitTemporaryModel(workspace.getFileName());
             File tempXmi = createTempFile(workspace.getFileName(), tempXmiFilename );
             File tempF =   createTempFile(fullPathtoFile,filename);        
 
@@ -23,6 +23,7 @@ import org.pentaho.agilebi.spoon.AbstractSwtXulDialogController;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.gui.SpoonFactory;
+import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
 import org.pentaho.ui.xul.XulComponent;
@@ -60,7 +61,7 @@ public class XulDialogPublish extends AbstractSwtXulDialogController implements
 
   private static Logger logger = LoggerFactory.getLogger(XulDialogPublish.class);
   
-  private final IBiServerConfigUtil biServerConfigUtil = PentahoSystem.get(IBiServerConfigUtil.class);
+  private final IBiServerConfigUtil biServerConfigUtil = lookupBiServerConfigUtil();
   
   private int folderTreeDepth = 99;
   
@@ -118,6 +119,13 @@ public class XulDialogPublish extends AbstractSwtXulDialogController implements
    * @param shell
    * @throws XulException
    */
+  private static IBiServerConfigUtil lookupBiServerConfigUtil() {
+    AgileBILifecycleListener.initializePlatform();
+    IBiServerConfigUtil configUtil = PentahoSystem.get(IBiServerConfigUtil.class);
+    // PentahoSystem is not set up in Spoon when the platform runs in a child JVM
+    return configUtil != null ? configUtil : new BiServerConfigUtil();
+  }
+
   public XulDialogPublish( Shell shell ) throws XulException {
     super( shell ); 
     
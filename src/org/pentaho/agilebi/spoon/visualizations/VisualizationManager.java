@@ -21,41 +21,107 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.pentaho.agilebi.platform.StartupTimeline;
+import org.pentaho.di.core.EngineMetaInterface;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.ui.spoon.FileListener;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.TypedStringValue;
 import org.springframework.beans.factory.xml.XmlBeanDefinitionStoreException;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springframework.util.ClassUtils;
+import org.w3c.dom.Node;
 
 
 
 public class VisualizationManager {
 
+	/**
+	 * Bean meta attribute in plugin.xml with the {@link IVisualization#getId()} of the bean, so the visualization can
+	 * be found by id without creating it.
+	 */
+	public static final String ID_ATTRIBUTE = "visualization-id"; //$NON-NLS-1$
+
+	private static LogChannelInterface log = new LogChannel(VisualizationManager.class.getSimpleName());
+
 	private File pluginsLocation;
-	private List<IVisualization> visualizations;
+	private volatile List<VisualizationEntry> visualizations;
 	private static VisualizationManager instance;
 
+	// indexes over visualizations, rebuilt whenever it changes
+	private volatile Map<String, VisualizationEntry> visualizationsByTitle = new HashMap<String, VisualizationEntry>();
+	private volatile Map<String, VisualizationEntry> visualizationsById = new HashMap<String, VisualizationEntry>();
+	private volatile List<String> visualizationNames = Collections.emptyList();
+
+	private FutureTask<Void> loading;
+
 	public static final String PLUGIN_FILE = "plugin.xml"; //$NON-NLS-1$
 
-	public static VisualizationManager getInstance() {
+	/**
+	 * Returns the shared manager. The first call starts loading the visualization plugins on a background thread;
+	 * the other methods wait for that to finish.
+	 */
+	public static synchronized VisualizationManager getInstance() {
 	  if (instance == null) {
-	    instance = new VisualizationManager("plugins/spoon/agile-bi/visualizations"); //$NON-NLS-1$
+	    instance = new VisualizationManager("plugins/spoon/agile-bi/visualizations", true); //$NON-NLS-1$
 	  }
 	  return instance;
 	}
 	
 	protected VisualizationManager() {
-	  visualizations = new ArrayList<IVisualization>();
+	  visualizations = new ArrayList<VisualizationEntry>();
 	}
 	
 	public VisualizationManager(String aLocation) {
-		visualizations = new ArrayList<IVisualization>();
+	  this(aLocation, false);
+	}
+
+	/**
+	 * @param aLocation directory with one sub directory per visualization plugin
+	 * @param background load the plugins on a background thread instead of before returning
+	 */
+	protected VisualizationManager(String aLocation, boolean background) {
+		visualizations = new ArrayList<VisualizationEntry>();
 		pluginsLocation = new File(aLocation);
-		loadVisualizations(pluginsLocation);
+		loading = new FutureTask<Void>(new Callable<Void>() {
+		  public Void call() throws Exception {
+		    StartupTimeline.Phase phase = StartupTimeline.getInstance().begin("VisualizationManager plugin loading"); //$NON-NLS-1$
+		    try {
+		      loadVisualizations(pluginsLocation);
+		    } finally {
+		      phase.end();
+		    }
+		    return null;
+		  }
+		});
+		if (background) {
+		  Thread loader = new Thread(loading, "agilebi-visualization-loader"); //$NON-NLS-1$
+		  loader.setDaemon(true);
+		  loader.start();
+		} else {
+		  loading.run();
+		}
 	}
 
-  private void loadVisualizations(File aDir) {
+  private void loadVisualizations(File aDir) throws InterruptedException {
+		List<File> pluginFiles = new ArrayList<File>();
 		File[] theFiles = aDir.listFiles();
 		if(theFiles == null){
 		  return;
@@ -63,19 +129,122 @@ public class VisualizationManager {
 		for (int i = 0; i < theFiles.length; i++) {
 			File theFile = theFiles[i];
 			if (theFile.isDirectory()) {
-			  File[] dirFiles = theFile.listFiles();
-			  for (int j = 0; j < dirFiles.length; j++) {
-			    File pluginFile = dirFiles[j];
-			    if (pluginFile.getName().equals(PLUGIN_FILE)) {
-			      loadVisualizationFile(pluginFile);
-			    }
+			  File pluginFile = new File(theFile, PLUGIN_FILE);
+			  if (pluginFile.isFile()) {
+			    pluginFiles.add(pluginFile);
 			  }
 			}
 		}
-		
+		if (pluginFiles.isEmpty()) {
+		  return;
+		}
+
+		// each plugin has its own Spring context, build them side by side
+		int threads = Math.min(pluginFiles.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<VisualizationEntry> loaded = new ArrayList<VisualizationEntry>();
+		try {
+		  List<Future<List<VisualizationEntry>>> results = new ArrayList<Future<List<VisualizationEntry>>>();
+		  for (final File pluginFile : pluginFiles) {
+		    results.add(executor.submit(new Callable<List<VisualizationEntry>>() {
+		      public List<VisualizationEntry> call() {
+		        return readVisualizationFile(pluginFile);
+		      }
+		    }));
+		  }
+		  for (Future<List<VisualizationEntry>> result : results) {
+		    try {
+		      loaded.addAll(result.get());
+		    } catch (ExecutionException e) {
+		      log.logError("Could not load a visualization plugin", e.getCause()); //$NON-NLS-1$
+		    }
+		  }
+		} finally {
+		  executor.shutdownNow();
+		}
+		addVisualizations(loaded);
+	}
+	
+  protected void loadVisualizationFile(File file) {
+    addVisualizations(readVisualizationFile(file));
+	}
+
+  /**
+   * Reads the bean definitions of one plugin. The visualization beans are registered lazily and only created when
+   * they are first asked for; their title and order are taken from the definitions.
+   */
+  private List<VisualizationEntry> readVisualizationFile(File file) {
+    List<VisualizationEntry> result = new ArrayList<VisualizationEntry>();
+    StartupTimeline.Phase phase = StartupTimeline.getInstance().begin(
+        "visualization " + file.getParentFile().getName() + "/" + file.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+    try {
+      FileSystemXmlApplicationContext context = new FileSystemXmlApplicationContext(new String[]{file.getPath()}, false);
+      context.setClassLoader(getClass().getClassLoader());
+      context.addBeanFactoryPostProcessor(new BeanFactoryPostProcessor() {
+        public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+          for (String name : beanFactory.getBeanNamesForType(IVisualization.class, false, false)) {
+            beanFactory.getBeanDefinition(name).setLazyInit(true);
+          }
+        }
+      });
+      context.refresh();
+      ConfigurableListableBeanFactory beanFactory = context.getBeanFactory();
+      for (String name : beanFactory.getBeanNamesForType(IVisualization.class, false, false)) {
+        VisualizationEntry entry = createEntry(context, name, beanFactory.getBeanDefinition(name));
+        if (entry.getOrder() >= 0) {
+          result.add(entry);
+        }
+      }
+    } catch (XmlBeanDefinitionStoreException e) {
+      log.logError("Could not read visualization plugin " + file, e); //$NON-NLS-1$
+    } finally {
+      phase.end();
+    }
+    return result;
+  }
+
+  private VisualizationEntry createEntry(FileSystemXmlApplicationContext context, String name,
+      BeanDefinition definition) {
+    Class<?> beanClass = null;
+    try {
+      beanClass = ClassUtils.forName(definition.getBeanClassName(), getClass().getClassLoader());
+    } catch (Throwable t) {
+      // leave it to Spring to report when the bean is created
+    }
+    if (beanClass == null || !AbstractVisualization.class.isAssignableFrom(beanClass)) {
+      // title and order could come from anywhere, ask the bean itself
+      IVisualization vis = (IVisualization) context.getBean(name);
+      return new VisualizationEntry(context, name, vis.getTitle(), vis.getOrder(), vis.getId(), null, vis);
+    }
+    // same as AbstractVisualization.setTitle and setOrder
+    String title = getPropertyValue(definition, "title"); //$NON-NLS-1$
+    if (title != null) {
+      title = BaseMessages.getString(IVisualization.class, title);
+    }
+    String order = getPropertyValue(definition, "order"); //$NON-NLS-1$
+    Object id = definition.getAttribute(ID_ATTRIBUTE);
+    return new VisualizationEntry(context, name, title, order == null ? 0 : Integer.parseInt(order.trim()),
+        id == null ? null : id.toString(), getPropertyValue(definition, "extension"), null); //$NON-NLS-1$
+  }
+
+  private static String getPropertyValue(BeanDefinition definition, String property) {
+    PropertyValue value = definition.getPropertyValues().getPropertyValue(property);
+    if (value == null || value.getValue() == null) {
+      return null;
+    }
+    if (value.getValue() instanceof TypedStringValue) {
+      return ((TypedStringValue) value.getValue()).getValue();
+    }
+    return value.getValue().toString();
+  }
+
+  private synchronized void addVisualizations(List<VisualizationEntry> added) {
+    List<VisualizationEntry> all = new ArrayList<VisualizationEntry>(visualizations);
+    all.addAll(added);
+
 		// sort the list based on order and alpha
-		Collections.sort(visualizations, new Comparator<IVisualization>() {
-      public int compare(IVisualization v1, IVisualization v2) {
+		Collections.sort(all, new Comparator<VisualizationEntry>() {
+      public int compare(VisualizationEntry v1, VisualizationEntry v2) {
         if (v1.getOrder() > v2.getOrder()) {
           return -1;
         } else if (v1.getOrder() < v2.getOrder()) {
@@ -86,56 +255,209 @@ public class VisualizationManager {
       }
 		  
 		});
-	}
-	
-  protected void loadVisualizationFile(File file) {
-    try {
-      FileSystemXmlApplicationContext context = new FileSystemXmlApplicationContext(new String[]{file.getPath()}, false);
-      context.setClassLoader(getClass().getClassLoader());
-      context.refresh();
-      Map beans = context.getBeansOfType(IVisualization.class);
-      for (Object key : beans.keySet()) {
-        IVisualization vis = (IVisualization)beans.get(key);
-        if (vis.getOrder() >= 0) {
-          visualizations.add(vis);
-        }
+
+    Map<String, VisualizationEntry> byTitle = new HashMap<String, VisualizationEntry>();
+    Map<String, VisualizationEntry> byId = new HashMap<String, VisualizationEntry>();
+    List<String> names = new ArrayList<String>();
+    for (VisualizationEntry vis : all) {
+      // the first one in the sorted list wins, as with the linear search this replaces
+      if (!byTitle.containsKey(vis.getTitle())) {
+        byTitle.put(vis.getTitle(), vis);
       }
-    } catch (XmlBeanDefinitionStoreException e) {
-      // TODO: introduce logging
-      e.printStackTrace();
+      if (vis.getId() != null && !byId.containsKey(vis.getId())) {
+        byId.put(vis.getId(), vis);
+      }
+      names.add(vis.getTitle());
     }
-	}
+    visualizations = all;
+    visualizationsByTitle = byTitle;
+    visualizationsById = byId;
+    visualizationNames = Collections.unmodifiableList(names);
+  }
+
+  /**
+   * Waits for the plugins to be loaded if that happens in the background.
+   */
+  private void awaitLoaded() {
+    if (loading == null) {
+      return;
+    }
+    try {
+      loading.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.logError("Could not load the visualization plugins", e.getCause()); //$NON-NLS-1$
+    }
+  }
 
+	/**
+	 * Creates all visualizations that were not asked for yet. To register the visualizations with Spoon use
+	 * {@link #getFileListeners()}, which does not.
+	 */
 	public List<IVisualization> getVisualizations() {
-		return visualizations;
+	  awaitLoaded();
+	  List<IVisualization> result = new ArrayList<IVisualization>();
+	  for (VisualizationEntry vis : visualizations) {
+	    result.add(vis.getVisualization());
+	  }
+		return result;
 	}
 
+	/**
+	 * Lists the titles without creating any visualization.
+	 */
 	public List<String> getVisualizationNames() {
-
-		List<String> theNames = new ArrayList<String>();
-		List<IVisualization> theVisualizations = getVisualizations();
-		Iterator<IVisualization> theItr = theVisualizations.iterator();
-		while (theItr.hasNext()) {
-			IVisualization theVisualization = theItr.next();
-			theNames.add(theVisualization.getTitle());
-		}
-		return theNames;
+	  awaitLoaded();
+	  return visualizationNames;
 	}
 
 	public IVisualization getVisualization(String aVisualization) {
+	  awaitLoaded();
+	  VisualizationEntry vis = visualizationsByTitle.get(aVisualization);
+	  return vis == null ? null : vis.getVisualization();
+	}
 
-		List<IVisualization> theVisualizations = getVisualizations();
-		Iterator<IVisualization> theItr = theVisualizations.iterator();
-		IVisualization theVisualization = null;
-		while (theItr.hasNext()) {
-			theVisualization = (IVisualization) theItr.next();
-			if (theVisualization.getTitle().equals(aVisualization)) {
-				break;
-			} else {
-				theVisualization = null;
-			}
-		}
-		return theVisualization;
+	/**
+	 * Looks the id up in the {@link #ID_ATTRIBUTE} of the plugins. Only plugins that do not declare one are created to
+	 * ask for their id.
+	 * 
+	 * @return the visualization with the given {@link IVisualization#getId()}, null if there is none
+	 */
+	public IVisualization getVisualizationById(String id) {
+	  awaitLoaded();
+	  if (id == null) {
+	    return null;
+	  }
+	  VisualizationEntry entry = visualizationsById.get(id);
+	  if (entry != null) {
+	    return entry.getVisualization();
+	  }
+	  for (VisualizationEntry vis : visualizations) {
+	    if (vis.getId() == null && id.equals(vis.getVisualization().getId())) {
+	      return vis.getVisualization();
+	    }
+	  }
+	  return null;
+	}
+
+	/**
+	 * One Spoon file listener per visualization. A visualization is only created when a file of its type is opened or
+	 * saved, or when its listener is asked something its plugin.xml does not declare.
+	 */
+	public List<FileListener> getFileListeners() {
+	  awaitLoaded();
+	  List<FileListener> result = new ArrayList<FileListener>();
+	  for (VisualizationEntry vis : visualizations) {
+	    result.add(new VisualizationFileListener(vis));
+	  }
+	  return result;
+	}
+
+	/**
+	 * A visualization bean that is created on first use.
+	 */
+	private static class VisualizationEntry {
+
+	  private final FileSystemXmlApplicationContext context;
+	  private final String beanName;
+	  private final String title;
+	  private final int order;
+	  private final String id;
+	  private final String extension;
+	  private IVisualization visualization;
+
+	  VisualizationEntry(FileSystemXmlApplicationContext context, String beanName, String title, int order, String id,
+	      String extension, IVisualization visualization) {
+	    this.context = context;
+	    this.beanName = beanName;
+	    this.title = title;
+	    this.order = order;
+	    this.id = id;
+	    this.extension = extension;
+	    this.visualization = visualization;
+	  }
+
+	  String getId() {
+	    return id;
+	  }
+
+	  /**
+	   * @return the file extension declared in plugin.xml, null if there is none
+	   */
+	  String getExtension() {
+	    return extension;
+	  }
+
+	  synchronized boolean isCreated() {
+	    return visualization != null;
+	  }
+
+	  String getTitle() {
+	    return title;
+	  }
+
+	  int getOrder() {
+	    return order;
+	  }
+
+	  synchronized IVisualization getVisualization() {
+	    if (visualization == null) {
+	      visualization = (IVisualization) context.getBean(beanName);
+	    }
+	    return visualization;
+	  }
+	}
+
+	/**
+	 * Answers Spoon from the plugin.xml of a visualization until the visualization itself is needed.
+	 */
+	private static class VisualizationFileListener implements FileListener {
+
+	  private final VisualizationEntry entry;
+
+	  VisualizationFileListener(VisualizationEntry entry) {
+	    this.entry = entry;
+	  }
+
+	  public boolean open(Node transNode, String fname, boolean importfile) {
+	    return entry.getVisualization().open(transNode, fname, importfile);
+	  }
+
+	  public boolean save(EngineMetaInterface meta, String fname, boolean isExport) {
+	    return entry.getVisualization().save(meta, fname, isExport);
+	  }
+
+	  public void syncMetaName(EngineMetaInterface meta, String name) {
+	    entry.getVisualization().syncMetaName(meta, name);
+	  }
+
+	  public boolean accepts(String fileName) {
+	    if (entry.isCreated() || entry.getExtension() == null) {
+	      return entry.getVisualization().accepts(fileName);
+	    }
+	    return fileName != null && fileName.endsWith("." + entry.getExtension()); //$NON-NLS-1$
+	  }
+
+	  public boolean acceptsXml(String nodeName) {
+	    // only asked for files no listener accepts by extension
+	    return entry.getVisualization().acceptsXml(nodeName);
+	  }
+
+	  public String[] getFileTypeDisplayNames(Locale locale) {
+	    return entry.getVisualization().getFileTypeDisplayNames(locale);
+	  }
+
+	  public String getRootNodeName() {
+	    return entry.getVisualization().getRootNodeName();
+	  }
+
+	  public String[] getSupportedExtensions() {
+	    if (entry.isCreated() || entry.getExtension() == null) {
+	      return entry.getVisualization().getSupportedExtensions();
+	    }
+	    return new String[] { entry.getExtension() };
+	  }
 	}
 
 }
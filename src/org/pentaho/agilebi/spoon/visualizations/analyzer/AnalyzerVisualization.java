@@ -19,6 +19,7 @@ package org.pentaho.agilebi.spoon.visualizations.analyzer;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.*;
 import java.util.regex.Matcher;
@@ -249,6 +250,7 @@ public class AnalyzerVisualization extends AbstractVisualization {
 			Composite theMainBox = (Composite) theXulContainer.getDocumentRoot().getElementById("mainVBox").getManagedObject();
 			SwtXulRunner theRunner = new SwtXulRunner();
 			theRunner.addContainer(theXulContainer);
+			ModelerHelper.awaitTemporaryModel(theFileName);
 			theRunner.initialize();
       createTabForBrowser(theMainBox, theController, model);   
       reportName = "Unsaved Report"; //$NON-NLS-1$
@@ -262,6 +264,15 @@ public class AnalyzerVisualization extends AbstractVisualization {
   }
 	
 	private void flushAnalyzerCache() {
+    if (AgileBILifecycleListener.getChildServer() != null) {
+      // the platform runs in its own JVM
+      try {
+        AgileBILifecycleListener.getChildServer().sendCommand("flush-cache", "region", "mondrian-catalog-cache"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      } catch (IOException e) {
+        logger.error("Could not flush the analyzer cache", e); //$NON-NLS-1$
+      }
+      return;
+    }
     ICacheManager cacheMgr = PentahoSystem.getCacheManager(null);
     if (cacheMgr != null) {
       cacheMgr.clearRegionCache("mondrian-catalog-cache"); //$NON-NLS-1$
@@ -273,6 +273,7 @@ public class PRPTVisualization extends AbstractVisualization {
               ClassicEngineBoot engineBoot = ClassicEngineBoot.getInstance();
               engineBoot.start();
             }
+            ModelerHelper.awaitTemporaryModel(fModel.getFileName());
             EmbeddedWizard wizard = new EmbeddedWizard(fModel, tempModel);
             waitBox.stop();
             wizard.run(null);
@@ -17,16 +17,22 @@
 
 package org.pentaho.di.core.lifecycle.pdi;
 
+import java.util.List;
+
 import org.apache.commons.lang.ObjectUtils.Null;
 import org.eclipse.swt.widgets.Display;
 import org.pentaho.agilebi.modeler.util.ModelerSourceFactory;
+import org.pentaho.agilebi.platform.AgileBiPlatformConfig;
+import org.pentaho.agilebi.platform.ChildJvmPlatformServer;
+import org.pentaho.agilebi.platform.InstaviewResultCache;
+import org.pentaho.agilebi.platform.InstaviewSnapshotManager;
 import org.pentaho.agilebi.platform.JettyServer;
+import org.pentaho.agilebi.platform.StartupTimeline;
 import org.pentaho.agilebi.spoon.KettleModelerSource;
 import org.pentaho.agilebi.spoon.OutputStepModelerSource;
 import org.pentaho.agilebi.spoon.perspective.AgileBiInstaPerspective;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.perspective.AgileBiSpoonInstaPlugin;
-import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
 import org.pentaho.di.core.annotations.LifecyclePlugin;
 import org.pentaho.di.core.gui.GUIOption;
@@ -34,20 +40,27 @@ import org.pentaho.di.core.gui.SpoonFactory;
 import org.pentaho.di.core.lifecycle.LifeEventHandler;
 import org.pentaho.di.core.lifecycle.LifecycleException;
 import org.pentaho.di.core.lifecycle.LifecycleListener;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.core.plugins.PluginClassTypeMapping;
 import org.pentaho.di.ui.core.PropsUI;
+import org.pentaho.di.ui.spoon.FileListener;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.platform.api.engine.IPluginManager;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
 
-import java.net.Socket;
-
 @LifecyclePlugin(id = "AgileBiPlugin")
 @PluginClassTypeMapping(classTypes = { GUIOption.class }, implementationClass = { Null.class })
 public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Object> {
   public static int consolePort;
 
-  private JettyServer server = null;
+  private static final String DEFAULT_PORT_RANGE = "10000-10099"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(AgileBILifecycleListener.class.getSimpleName());
+
+  private static volatile JettyServer server = null;
+
+  private static volatile ChildJvmPlatformServer childServer = null;
 
   private boolean showTips;
 
@@ -56,8 +69,9 @@ public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Ob
   public void onStart(final LifeEventHandler arg0) throws LifecycleException {
     // turn off tooltips and the repositories dialog
     Spoon spoon = Spoon.getInstance();
-    if (spoon.getStartupPerspective() != null
-        && spoon.getStartupPerspective().equals(AgileBiInstaPerspective.PERSPECTIVE_ID)) {
+    final boolean isInstaviewStartup = spoon.getStartupPerspective() != null
+        && spoon.getStartupPerspective().equals(AgileBiInstaPerspective.PERSPECTIVE_ID);
+    if (isInstaviewStartup) {
       PropsUI props = spoon.getProperties();
       showTips = props.showToolTips();
       showRepositoryDialog = props.showRepositoriesDialogAtStartup();
@@ -69,40 +83,22 @@ public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Ob
 
       @Override
       public void run() {
+        // starts reading the visualization plugins in the background while the server comes up
+        final VisualizationManager visualizationManager = VisualizationManager.getInstance();
         try {
-          int port = 9999;
-          boolean portFound = false;
-          int tries = 100;
-          while (portFound == false && tries > 0) {
-            port++;
-            tries--;
-            Socket sock = null;
-            try {
-              sock = new Socket("localhost", port);
-            } catch (Exception e) {
-              portFound = true;
-            } finally {
-              if (sock != null) {
-                sock.close();
-              }
-            }
-          }
-          if (!portFound) {
-            throw new IllegalStateException("Could not find an open port to start the Agile-BI server on");
-          }
-
-          AgileBILifecycleListener.consolePort = port;
-          server = new JettyServer("localhost", port); //$NON-NLS-1$
-          server.startServer();
-
-          // Only initialize the Instaview perspective if the Instaview plugin is registered
-          if (AgileBiSpoonInstaPlugin.isInstaviewRegistered(PentahoSystem.get(IPluginManager.class))) {
-            AgileBiInstaPerspective.getInstance().onStart();
+          int[] portRange = getPortRange(AgileBiPlatformConfig.getInstance().getString("server.port-range", //$NON-NLS-1$
+              DEFAULT_PORT_RANGE));
+          if (AgileBiPlatformConfig.getInstance().getBoolean("server.child-jvm", false)) { //$NON-NLS-1$
+            startChildServer(portRange);
+          } else {
+            startServer(portRange, isInstaviewStartup);
           }
         } catch (Exception e) {
-          e.printStackTrace();
+          log.logError("Could not start the embedded BI server: " + e.getMessage(), e); //$NON-NLS-1$
         }
 
+        // wait here rather than on the UI thread
+        final List<FileListener> visualizations = visualizationManager.getFileListeners();
         Display.getDefault().asyncExec(new Runnable() {
 
           @Override
@@ -113,18 +109,173 @@ public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Ob
             if (SpoonFactory.getInstance() != null) { // condition if for unit testing
               ((Spoon) SpoonFactory.getInstance()).addFileListener(AgileBiModelerPerspective.getInstance());
 
-              for (IVisualization viz : VisualizationManager.getInstance().getVisualizations()) {
+              for (FileListener viz : visualizations) {
                 ((Spoon) SpoonFactory.getInstance()).addFileListener(viz);
               }
             }
+            StartupTimeline.getInstance().finish();
           }
         });
       }
     }).start();
   }
 
+  private static void startServer(int[] portRange, boolean isInstaviewStartup) throws Exception {
+    JettyServer jettyServer = new JettyServer("localhost", portRange[0], portRange[1]); //$NON-NLS-1$
+    jettyServer.startServer();
+    // only published once the port is bound
+    AgileBILifecycleListener.consolePort = jettyServer.getPort();
+    server = jettyServer;
+
+    jettyServer.addPlatformListener(new JettyServer.PlatformListener() {
+      public void platformStarted() {
+        // Only initialize the Instaview perspective if the Instaview plugin is registered
+        if (AgileBiSpoonInstaPlugin.isInstaviewRegistered(PentahoSystem.get(IPluginManager.class))) {
+          AgileBiInstaPerspective.getInstance().onStart();
+        }
+      }
+    });
+    if (isInstaviewStartup) {
+      jettyServer.initializePlatformInBackground();
+    }
+  }
+
+  /**
+   * Runs the platform in its own JVM. Everything Spoon needs from it goes through HTTP, see
+   * {@link org.pentaho.agilebi.platform.PlatformControlHandler}.
+   */
+  private static void startChildServer(int[] portRange) throws Exception {
+    ChildJvmPlatformServer child = new ChildJvmPlatformServer("localhost", portRange[0], portRange[1]); //$NON-NLS-1$
+    child.addListener(new ChildJvmPlatformServer.Listener() {
+      public void started(int port) {
+        // also called after a restart, which may have had to move to another port
+        AgileBILifecycleListener.consolePort = port;
+      }
+    });
+    child.start();
+    childServer = child;
+
+    // the Instaview pools and result cache live in the child, keep them in step with the snapshots Spoon takes
+    InstaviewSnapshotManager.getInstance().addListener(new InstaviewSnapshotManager.Listener() {
+      public void snapshotsChanged() {
+        sendToChild("snapshots-changed"); //$NON-NLS-1$
+      }
+
+      public void tableRefreshed(String tableName) {
+        invalidateResultCache(tableName);
+      }
+    });
+
+    // Only initialize the Instaview perspective if the Instaview plugin is registered
+    if (Boolean.parseBoolean(child.sendCommand("plugin-registered", //$NON-NLS-1$
+        "id", AgileBiSpoonInstaPlugin.INSTAVIEW_PLATFORM_PLUGIN_ID))) { //$NON-NLS-1$
+      AgileBiInstaPerspective.getInstance().onStart();
+    }
+  }
+
+  /**
+   * @return the platform child JVM, or null when the platform runs inside Spoon
+   */
+  public static ChildJvmPlatformServer getChildServer() {
+    return childServer;
+  }
+
+  /**
+   * Drops the cached Instaview results that read a table, in the child JVM when the platform runs there.
+   *
+   * @return the number of results dropped
+   */
+  public static int invalidateResultCache(String tableName) {
+    if (childServer == null) {
+      return InstaviewResultCache.getInstance().invalidateTable(tableName);
+    }
+    String dropped = sendToChild("invalidate-table", "table", tableName); //$NON-NLS-1$ //$NON-NLS-2$
+    return dropped == null ? 0 : Integer.parseInt(dropped.trim());
+  }
+
+  private static String sendToChild(String command, String... parameter) {
+    ChildJvmPlatformServer child = childServer;
+    try {
+      return child == null ? null : child.sendCommand(command, parameter);
+    } catch (Exception e) {
+      log.logError("Could not send " + command + " to the embedded BI server", e); //$NON-NLS-1$ //$NON-NLS-2$
+      return null;
+    }
+  }
+
+  /**
+   * Parses <code>first-last</code> or a single port; 0 stands for any free port.
+   */
+  static int[] getPortRange(String value) {
+    String[] parts = value.trim().split("\\s*-\\s*"); //$NON-NLS-1$
+    try {
+      int first = Integer.parseInt(parts[0]);
+      int last = parts.length > 1 ? Integer.parseInt(parts[1]) : first;
+      if (parts.length <= 2 && first >= 0 && last >= first && last <= 65535) {
+        return new int[] { first, last };
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("Invalid server.port-range '" + value + "', expected e.g. " + DEFAULT_PORT_RANGE); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Makes sure the embedded BI platform, and with it PentahoSystem, is initialized before returning. With
+   * <code>server.lazy-init</code> it is otherwise only started on the first request or after an idle delay.
+   */
+  public static void initializePlatform() {
+    if (childServer != null) {
+      try {
+        childServer.sendCommand("initialize"); //$NON-NLS-1$
+      } catch (Exception e) {
+        throw new IllegalStateException("Could not initialize the embedded BI platform", e); //$NON-NLS-1$
+      }
+      return;
+    }
+    JettyServer jettyServer = server;
+    if (jettyServer != null) {
+      try {
+        jettyServer.initializePlatform();
+      } catch (Exception e) {
+        throw new IllegalStateException("Could not initialize the embedded BI platform", e); //$NON-NLS-1$
+      }
+    }
+  }
+
+  /**
+   * Starts initializing the embedded BI platform in the background, e.g. when a perspective that will need it is
+   * opened.
+   */
+  public static void initializePlatformInBackground() {
+    final ChildJvmPlatformServer child = childServer;
+    if (child != null) {
+      Thread initializer = new Thread(new Runnable() {
+        public void run() {
+          try {
+            child.sendCommand("initialize"); //$NON-NLS-1$
+          } catch (Exception e) {
+            log.logError("Could not initialize the embedded BI platform", e); //$NON-NLS-1$
+          }
+        }
+      }, "agilebi-platform-initialize"); //$NON-NLS-1$
+      initializer.setDaemon(true);
+      initializer.start();
+      return;
+    }
+    JettyServer jettyServer = server;
+    if (jettyServer != null) {
+      jettyServer.initializePlatformInBackground();
+    }
+  }
+
   public void onExit(LifeEventHandler arg0) throws LifecycleException {
-    server.stopServer();
+    if (server != null) {
+      server.stopServer();
+    }
+    if (childServer != null) {
+      childServer.stop();
+    }
     AgileBiInstaPerspective.getInstance().shutdown();
 
     // reset tooltips and the repositories dialog
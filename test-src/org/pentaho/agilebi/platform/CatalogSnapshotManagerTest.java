@@ -0,0 +1,158 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.di.core.database.GenericDatabaseMeta;
+import org.pentaho.di.core.database.MySQLDatabaseMeta;
+import org.pentaho.di.core.database.OracleDatabaseMeta;
+import org.pentaho.di.core.database.PostgreSQLDatabaseMeta;
+
+public class CatalogSnapshotManagerTest {
+
+  private static ResultSet rows(final String[]... rows) throws SQLException {
+    final int[] cursor = { -1 };
+    ResultSet rs = mock(ResultSet.class);
+    when(rs.next()).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) {
+        return ++cursor[0] < rows.length;
+      }
+    });
+    when(rs.getString(anyInt())).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) {
+        return rows[cursor[0]][(Integer) invocation.getArguments()[0] - 1];
+      }
+    });
+    return rs;
+  }
+
+  @Test
+  public void writeAndRead() throws Exception {
+    CatalogSnapshotManager.Catalog catalog = new CatalogSnapshotManager.Catalog(1234L);
+    catalog.add("public", "sales", "region", "varchar");
+    catalog.add("public", "sales", "amount", "numeric");
+    catalog.add("", "customers", "name", "varchar");
+
+    File file = File.createTempFile("catalog", ".tsv.gz");
+    file.deleteOnExit();
+    CatalogSnapshotManager.write(file, catalog);
+    CatalogSnapshotManager.Catalog read = CatalogSnapshotManager.read(file);
+
+    assertNotNull(read);
+    assertEquals(1234L, read.getRefreshed());
+    assertEquals(2, read.getTableCount());
+    CatalogSnapshotManager.Table sales = read.getTable("public", "sales");
+    assertEquals(2, sales.getColumns().size());
+    assertEquals("region", sales.getColumns().get(0).getName());
+    assertEquals("numeric", sales.getColumns().get(1).getTypeName());
+    assertNotNull(read.getTable(null, "customers"));
+  }
+
+  @Test
+  public void read_missingFile() {
+    assertNull(CatalogSnapshotManager.read(new File("does-not-exist.tsv.gz")));
+  }
+
+  @Test
+  public void getTables_sortedBySchemaAndName() {
+    CatalogSnapshotManager.Catalog catalog = new CatalogSnapshotManager.Catalog(0);
+    catalog.add("b", "orders", "id", "int");
+    catalog.add("a", "zones", "id", "int");
+    catalog.add("a", "Accounts", "id", "int");
+
+    assertEquals("Accounts", catalog.getTables().get(0).getName());
+    assertEquals("zones", catalog.getTables().get(1).getName());
+    assertEquals("orders", catalog.getTables().get(2).getName());
+  }
+
+  @Test
+  public void dialects() {
+    assertNotNull(CatalogSnapshotManager.Dialect.of(new OracleDatabaseMeta()).changedTablesQuery);
+    assertNotNull(CatalogSnapshotManager.Dialect.of(new MySQLDatabaseMeta()).changedTablesQuery);
+    assertNull(CatalogSnapshotManager.Dialect.of(new PostgreSQLDatabaseMeta()).changedTablesQuery);
+    assertNotNull(CatalogSnapshotManager.Dialect.of(new PostgreSQLDatabaseMeta()).columnsQuery);
+    assertNull(CatalogSnapshotManager.Dialect.of(new GenericDatabaseMeta()).columnsQuery);
+  }
+
+  @Test
+  public void refreshIncrementally_rereadsChangedTables() throws Exception {
+    CatalogSnapshotManager.Dialect dialect = CatalogSnapshotManager.Dialect.of(new MySQLDatabaseMeta());
+    CatalogSnapshotManager.Catalog previous = new CatalogSnapshotManager.Catalog(1000L);
+    previous.add("shop", "kept", "id", "int");
+    previous.add("shop", "altered", "old", "int");
+    previous.add("shop", "dropped", "id", "int");
+
+    Connection connection = mock(Connection.class);
+    PreparedStatement changed = mock(PreparedStatement.class);
+    when(connection.prepareStatement(dialect.changedTablesQuery)).thenReturn(changed);
+    when(changed.executeQuery()).thenReturn(rows(new String[] { "shop", "altered" }));
+    PreparedStatement tables = mock(PreparedStatement.class);
+    when(connection.prepareStatement(dialect.tablesQuery)).thenReturn(tables);
+    when(tables.executeQuery()).thenReturn(rows(new String[] { "shop", "kept" }, new String[] { "shop", "altered" },
+        new String[] { "shop", "added" }));
+    PreparedStatement columns = mock(PreparedStatement.class);
+    when(connection.prepareStatement(dialect.tableColumnsQuery)).thenReturn(columns);
+    // changed tables are read in name order
+    when(columns.executeQuery()).thenReturn(rows(new String[] { "shop", "added", "id", "int" }),
+        rows(new String[] { "shop", "altered", "new", "varchar" }, new String[] { "shop", "altered", "id", "int" }));
+
+    CatalogSnapshotManager.Catalog catalog = new CatalogSnapshotManager(new File("unused"), 0)
+        .refreshIncrementally(connection, dialect, previous, 2000L);
+
+    assertEquals(2000L, catalog.getRefreshed());
+    assertEquals(3, catalog.getTableCount());
+    assertNull(catalog.getTable("shop", "dropped"));
+    assertEquals(1, catalog.getTable("shop", "added").getColumns().size());
+    assertEquals(2, catalog.getTable("shop", "altered").getColumns().size());
+    assertEquals("new", catalog.getTable("shop", "altered").getColumns().get(0).getName());
+    assertEquals("id", catalog.getTable("shop", "kept").getColumns().get(0).getName());
+    assertNotSame(previous.getTable("shop", "kept"), catalog.getTable("shop", "kept"));
+    // the previous catalog is left as it was
+    assertEquals(1, previous.getTable("shop", "altered").getColumns().size());
+    assertEquals("old", previous.getTable("shop", "altered").getColumns().get(0).getName());
+    verify(columns, times(2)).setString(1, "shop");
+    verify(columns).setString(2, "added");
+    verify(columns).setString(2, "altered");
+  }
+
+  @Test
+  public void refreshIncrementally_unsupportedDialect() throws Exception {
+    CatalogSnapshotManager.Catalog previous = new CatalogSnapshotManager.Catalog(1000L);
+    assertNull(new CatalogSnapshotManager(new File("unused"), 0).refreshIncrementally(mock(Connection.class),
+        CatalogSnapshotManager.Dialect.of(new PostgreSQLDatabaseMeta()), previous, 2000L));
+  }
+
+}
@@ -0,0 +1,69 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+
+public class InstaviewDatasourceServiceTest {
+
+  @BeforeClass
+  public static void setup() throws KettleException {
+    KettleEnvironment.init();
+  }
+
+  @Test
+  public void getConnectionFingerprint_sameDatabase() throws KettleException {
+    DatabaseMeta first = new DatabaseMeta("first", "POSTGRESQL", "Native", "dbhost", "warehouse", "5432", "analyst", "secret");
+    DatabaseMeta second = new DatabaseMeta("second", "POSTGRESQL", "Native", "dbhost", "warehouse", "5432", "analyst", "secret");
+
+    assertEquals(InstaviewDatasourceService.getConnectionFingerprint(first),
+        InstaviewDatasourceService.getConnectionFingerprint(second));
+  }
+
+  @Test
+  public void getConnectionFingerprint_differentDatabase() throws KettleException {
+    DatabaseMeta first = new DatabaseMeta("first", "POSTGRESQL", "Native", "dbhost", "warehouse", "5432", "analyst", "secret");
+    DatabaseMeta otherHost = new DatabaseMeta("first", "POSTGRESQL", "Native", "otherhost", "warehouse", "5432", "analyst", "secret");
+    DatabaseMeta otherUser = new DatabaseMeta("first", "POSTGRESQL", "Native", "dbhost", "warehouse", "5432", "etl", "secret");
+
+    String fingerprint = InstaviewDatasourceService.getConnectionFingerprint(first);
+    assertFalse(fingerprint.equals(InstaviewDatasourceService.getConnectionFingerprint(otherHost)));
+    assertFalse(fingerprint.equals(InstaviewDatasourceService.getConnectionFingerprint(otherUser)));
+  }
+
+  @Test
+  public void digest() {
+    assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", InstaviewDatasourceService.digest("abc"));
+  }
+
+  @Test
+  public void getWarmUpTarget_cappedByMaxIdle() {
+    assertEquals(5, InstaviewDatasourceService.getWarmUpTarget(5, -1));
+    assertEquals(5, InstaviewDatasourceService.getWarmUpTarget(5, 8));
+    assertEquals(2, InstaviewDatasourceService.getWarmUpTarget(5, 2));
+    assertEquals(0, InstaviewDatasourceService.getWarmUpTarget(5, 0));
+  }
+
+}
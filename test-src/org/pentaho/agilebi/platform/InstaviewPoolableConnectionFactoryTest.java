@@ -0,0 +1,44 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+
+public class InstaviewPoolableConnectionFactoryTest {
+
+  @BeforeClass
+  public static void setup() throws KettleException {
+    KettleEnvironment.init();
+  }
+
+  @Test
+  public void getDialectValidationQuery() {
+    DatabaseMeta oracle = new DatabaseMeta("oracle", "ORACLE", "Native", "dbhost", "orcl", "1521", "scott", "tiger");
+    DatabaseMeta postgres = new DatabaseMeta("pg", "POSTGRESQL", "Native", "dbhost", "warehouse", "5432", "analyst", "secret");
+
+    assertEquals("SELECT 1 FROM DUAL", InstaviewPoolableConnectionFactory.getDialectValidationQuery(oracle));
+    assertEquals("SELECT 1", InstaviewPoolableConnectionFactory.getDialectValidationQuery(postgres));
+  }
+
+}
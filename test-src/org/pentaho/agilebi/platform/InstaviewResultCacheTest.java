@@ -0,0 +1,84 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.rowset.RowSetMetaDataImpl;
+
+import org.junit.Test;
+
+public class InstaviewResultCacheTest {
+
+  private InstaviewResultCache.Entry entry(String sql, long size) {
+    return new InstaviewResultCache.Entry(sql, new RowSetMetaDataImpl(), new ArrayList<Object[]>(), size);
+  }
+
+  @Test
+  public void normalizeSql() {
+    assertEquals("select a, 'x  y' from t where b = 1",
+        InstaviewResultCache.normalizeSql("  select a,\n\t'x  y'   from t\nwhere b = 1 "));
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyUsed() {
+    InstaviewResultCache cache = new InstaviewResultCache(true, 100, 100);
+    cache.put("a", entry("select * from a", 40));
+    cache.put("b", entry("select * from b", 40));
+    cache.get("a");
+    cache.put("c", entry("select * from c", 40));
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(80, cache.getSizeBytes());
+  }
+
+  @Test
+  public void put_ignoresOversizedEntries() {
+    InstaviewResultCache cache = new InstaviewResultCache(true, 100, 50);
+    cache.put("a", entry("select * from a", 60));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void invalidateTable() {
+    InstaviewResultCache cache = new InstaviewResultCache(true, 1000, 1000);
+    cache.put("sales", entry("select sum(amount) from \"SALES\" group by region", 10));
+    cache.put("sales_archive", entry("select sum(amount) from sales_archive", 10));
+    cache.put("customers", entry("select name from customers", 10));
+
+    assertEquals(1, cache.invalidateTable("Sales"));
+    assertNull(cache.get("sales"));
+    assertNotNull(cache.get("sales_archive"));
+    assertNotNull(cache.get("customers"));
+  }
+
+  @Test
+  public void estimateSize() {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[] { "abc", null, 1 });
+    assertEquals(16 + 24 + 46 + 24, InstaviewResultCache.Entry.estimateSize(rows.get(0)));
+  }
+
+}
@@ -0,0 +1,60 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.Test;
+
+public class JettyServerTest {
+
+  @Test
+  public void bind_skipsPortInUse() throws Exception {
+    ServerSocket taken = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+    try {
+      int first = taken.getLocalPort();
+      JettyServer server = new JettyServer("localhost", first, Math.min(first + 20, 65535));
+      SelectChannelConnector connector = server.bind();
+      try {
+        assertTrue(connector.getLocalPort() > first);
+        assertEquals(connector.getLocalPort(), server.getPort());
+      } finally {
+        connector.close();
+      }
+    } finally {
+      taken.close();
+    }
+  }
+
+  @Test(expected = BindException.class)
+  public void bind_failsWhenRangeInUse() throws Exception {
+    ServerSocket taken = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+    try {
+      new JettyServer("localhost", taken.getLocalPort(), taken.getLocalPort()).bind();
+    } finally {
+      taken.close();
+    }
+  }
+
+}
@@ -0,0 +1,51 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void record() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(0);
+    histogram.record(7);
+    histogram.record(10);
+    histogram.record(60000);
+
+    assertEquals(4, histogram.getCount());
+    assertEquals(60017, histogram.getTotalMillis());
+    assertEquals(60000, histogram.getMaxMillis());
+
+    Map<String, Long> buckets = histogram.getBuckets();
+    assertEquals(Long.valueOf(1), buckets.get("<=1ms"));
+    assertEquals(Long.valueOf(2), buckets.get("<=10ms"));
+    assertEquals(Long.valueOf(1), buckets.get(">10000ms"));
+  }
+
+  @Test
+  public void getAverageMillis_empty() {
+    assertEquals(0, new LatencyHistogram().getAverageMillis(), 0);
+  }
+
+}
@@ -0,0 +1,108 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+public class RelayedInstaviewHelperTest {
+
+  @Test
+  public void parse_decodesArguments() {
+    String line = RelayedInstaviewHelper.format("connectionBorrowed", "jdbc:h2:mem:a b", "12"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    assertArrayEquals(new String[] { "connectionBorrowed", "jdbc:h2:mem:a b", "12" }, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        RelayedInstaviewHelper.parse(line));
+    assertNull(RelayedInstaviewHelper.parse("INFO some log output")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void dispatch_callsSpoonHelper() {
+    IInstaviewHelper helper = mock(IInstaviewHelper.class);
+    RelayedInstaviewHelper.dispatch(helper, RelayedInstaviewHelper.parse(
+        RelayedInstaviewHelper.format("queryExecuted", "sales", "250", "true"))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+    verify(helper).queryExecuted("sales", 250, true); //$NON-NLS-1$
+  }
+
+  @Test
+  public void restartDatastore_waitsForAnswer() throws Exception {
+    // answers each relayed restart the way ChildJvmPlatformServer does, through complete()
+    RelayedInstaviewHelper relay = new RelayedInstaviewHelper(new PrintStream(new LineHandler() {
+      void line(String line) {
+        String[] call = RelayedInstaviewHelper.parse(line);
+        RelayedInstaviewHelper.complete(call[1], "true", null); //$NON-NLS-1$
+      }
+    }, true), 5000);
+
+    assertTrue(relay.restartDatastore());
+    assertFalse(RelayedInstaviewHelper.complete("no such call", "true", null)); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  @Test(expected = Exception.class)
+  public void restartDatastore_failsWhenSpoonFails() throws Exception {
+    RelayedInstaviewHelper relay = new RelayedInstaviewHelper(new PrintStream(new LineHandler() {
+      void line(String line) {
+        RelayedInstaviewHelper.complete(RelayedInstaviewHelper.parse(line)[1], "false", "datastore locked"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }, true), 5000);
+
+    relay.restartDatastore();
+  }
+
+  @Test
+  public void connectionMade_isRelayed() {
+    final StringBuilder lines = new StringBuilder();
+    new RelayedInstaviewHelper(new PrintStream(new LineHandler() {
+      void line(String line) {
+        lines.append(line);
+      }
+    }, true), 5000).connectionMade();
+
+    assertEquals(RelayedInstaviewHelper.LINE_PREFIX + "connectionMade", lines.toString()); //$NON-NLS-1$
+  }
+
+  private abstract static class LineHandler extends OutputStream {
+
+    private final StringBuilder current = new StringBuilder();
+
+    abstract void line(String line);
+
+    public void write(int b) throws IOException {
+      if (b == '\n') {
+        String line = current.toString().trim();
+        current.setLength(0);
+        line(line);
+      } else {
+        current.append((char) b);
+      }
+    }
+  }
+
+}
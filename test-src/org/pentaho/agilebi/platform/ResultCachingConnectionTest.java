@@ -0,0 +1,82 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class ResultCachingConnectionTest {
+
+  private static final String SQL = "select region from sales"; //$NON-NLS-1$
+
+  private int readAll(Connection connection, int maxRows) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(SQL);
+    if (maxRows > 0) {
+      statement.setMaxRows(maxRows);
+    }
+    ResultSet resultSet = statement.executeQuery();
+    int rows = 0;
+    while (resultSet.next()) {
+      rows++;
+    }
+    resultSet.close();
+    statement.close();
+    return rows;
+  }
+
+  @Test
+  public void executeQuery_keysResultsByMaxRows() throws SQLException {
+    Connection connection = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    ResultSet resultSet = mock(ResultSet.class);
+    ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+    when(connection.prepareStatement(SQL)).thenReturn(statement);
+    when(statement.executeQuery()).thenReturn(resultSet);
+    when(resultSet.getMetaData()).thenReturn(metaData);
+    when(metaData.getColumnCount()).thenReturn(1);
+    when(resultSet.getObject(1)).thenReturn("east"); //$NON-NLS-1$
+    // one row while limited, two rows otherwise
+    when(resultSet.next()).thenReturn(true, false, true, true, false);
+
+    InstaviewResultCache cache = new InstaviewResultCache(true, 10000, 10000);
+    Connection cached = ResultCachingConnection.wrap(connection, "sales-db", cache); //$NON-NLS-1$
+
+    assertEquals(1, readAll(cached, 1));
+    // the limited result is not served to an unlimited query
+    assertEquals(2, readAll(cached, 0));
+    verify(statement, times(2)).executeQuery();
+
+    // but each is served to the same query again
+    assertEquals(1, readAll(cached, 1));
+    assertEquals(2, readAll(cached, 0));
+    verify(statement, times(2)).executeQuery();
+    assertEquals(2, cache.getEntryCount());
+  }
+
+}
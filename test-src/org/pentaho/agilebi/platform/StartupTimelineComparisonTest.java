@@ -0,0 +1,57 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class StartupTimelineComparisonTest {
+
+  @Test
+  public void compare() throws Exception {
+    JSONObject before = new JSONObject("{\"finishedMs\": 9000, \"heapUsedMb\": 300," //$NON-NLS-1$
+        + " \"attributes\": {\"server.platform-profile\": \"full\"}, \"phases\": [" //$NON-NLS-1$
+        + "{\"name\": \"JettyServer.startServer\", \"durationMs\": 5000}," //$NON-NLS-1$
+        + "{\"name\": \"SessionCleanupListener\", \"durationMs\": 40}]}"); //$NON-NLS-1$
+    JSONObject after = new JSONObject("{\"finishedMs\": 7000, \"heapUsedMb\": 250," //$NON-NLS-1$
+        + " \"attributes\": {\"server.platform-profile\": \"embedded\"}, \"phases\": [" //$NON-NLS-1$
+        + "{\"name\": \"JettyServer.startServer\", \"durationMs\": 3000}," //$NON-NLS-1$
+        + "{\"name\": \"JettyServer.startServer\", \"durationMs\": 500}]}"); //$NON-NLS-1$
+
+    String comparison = StartupTimelineComparison.compare(before, after);
+    assertTrue(comparison, comparison.matches("(?s).*9000\\s+7000\\s+-2000\\s+startup finished.*")); //$NON-NLS-1$
+    assertTrue(comparison, comparison.matches("(?s).*300\\s+250\\s+-50\\s+heap used.*")); //$NON-NLS-1$
+    assertTrue(comparison, comparison.matches("(?s).*5000\\s+3500\\s+-1500\\s+JettyServer.startServer.*")); //$NON-NLS-1$
+    assertTrue(comparison, comparison.matches("(?s).*40\\s+-\\s+-\\s+SessionCleanupListener.*")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void readsTimelineJson() throws Exception {
+    StartupTimeline timeline = new StartupTimeline();
+    timeline.setAttribute("server.platform-profile", "embedded"); //$NON-NLS-1$ //$NON-NLS-2$
+    timeline.begin("JettyServer.startServer").end(); //$NON-NLS-1$
+
+    JSONObject json = new JSONObject(timeline.toJson());
+    String comparison = StartupTimelineComparison.compare(json, json);
+    assertTrue(comparison, comparison.contains("embedded")); //$NON-NLS-1$
+    assertTrue(comparison, comparison.matches("(?s).*\\+0\\s+JettyServer.startServer.*")); //$NON-NLS-1$
+  }
+
+}
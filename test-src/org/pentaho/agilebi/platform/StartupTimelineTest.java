@@ -0,0 +1,61 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StartupTimelineTest {
+
+  @Test
+  public void phasesAreRecordedOnce() {
+    StartupTimeline timeline = new StartupTimeline();
+    StartupTimeline.Phase phase = timeline.begin("port search"); //$NON-NLS-1$
+    phase.end();
+    long duration = phase.getDuration();
+    phase.end();
+
+    assertEquals(1, timeline.getPhases().size());
+    assertEquals(duration, timeline.getPhases().get(0).getDuration());
+    assertTrue(timeline.getSummary().contains("port search")); //$NON-NLS-1$
+  }
+
+  @Test
+  public void unfinishedPhasesAreNotRecorded() {
+    StartupTimeline timeline = new StartupTimeline();
+    timeline.begin("JettyServer.startServer"); //$NON-NLS-1$
+
+    assertEquals(0, timeline.getPhases().size());
+  }
+
+  @Test
+  public void json() {
+    StartupTimeline timeline = new StartupTimeline();
+    timeline.setAttribute("server.platform-profile", "embedded"); //$NON-NLS-1$ //$NON-NLS-2$
+    timeline.begin("visualization \"analyzer\"/plugin.xml").end(); //$NON-NLS-1$
+
+    String json = timeline.toJson();
+    assertTrue(json, json.contains("\"name\": \"visualization \\\"analyzer\\\"/plugin.xml\"")); //$NON-NLS-1$
+    assertTrue(json, json.contains("\"durationMs\": ")); //$NON-NLS-1$
+    assertTrue(json, json.contains("\"heapUsedMb\": ")); //$NON-NLS-1$
+    assertTrue(json, json.contains("\"attributes\": {\"server.platform-profile\": \"embedded\"}")); //$NON-NLS-1$
+  }
+
+}
@@ -0,0 +1,126 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class StatementCachingConnectionTest {
+
+  @Test
+  public void wrap_disabled() {
+    Connection connection = mock(Connection.class);
+    assertSame(connection, StatementCachingConnection.wrap(connection, 0, new StatementCachingConnection.Stats()));
+  }
+
+  @Test
+  public void prepareStatement_reusesClosedStatement() throws SQLException {
+    Connection connection = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(connection.prepareStatement("select a from t")).thenReturn(statement);
+
+    StatementCachingConnection.Stats stats = new StatementCachingConnection.Stats();
+    Connection cached = StatementCachingConnection.wrap(connection, 4, stats);
+
+    cached.prepareStatement("select a from t").close();
+    cached.prepareStatement("select a from t").close();
+
+    verify(connection, times(1)).prepareStatement("select a from t");
+    verify(statement, times(0)).close();
+    assertEquals(1, stats.getHits());
+    assertEquals(1, stats.getMisses());
+  }
+
+  @Test
+  public void prepareStatement_evictsLeastRecentlyUsed() throws SQLException {
+    Connection connection = mock(Connection.class);
+    PreparedStatement first = mock(PreparedStatement.class);
+    PreparedStatement second = mock(PreparedStatement.class);
+    when(connection.prepareStatement("select 1")).thenReturn(first);
+    when(connection.prepareStatement("select 2")).thenReturn(second);
+
+    StatementCachingConnection.Stats stats = new StatementCachingConnection.Stats();
+    Connection cached = StatementCachingConnection.wrap(connection, 1, stats);
+
+    cached.prepareStatement("select 1").close();
+    cached.prepareStatement("select 2").close();
+
+    verify(first).close();
+    verify(second, times(0)).close();
+    assertEquals(1, stats.getEvictions());
+  }
+
+  @Test
+  public void close_closesCachedStatements() throws SQLException {
+    Connection connection = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(connection.prepareStatement("select a from t")).thenReturn(statement);
+
+    Connection cached = StatementCachingConnection.wrap(connection, 4, new StatementCachingConnection.Stats());
+    cached.prepareStatement("select a from t").close();
+    cached.close();
+
+    verify(statement).close();
+    verify(connection).close();
+  }
+
+  @Test
+  public void release_restoresDriverLimits() throws SQLException {
+    Connection connection = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(connection.prepareStatement("select a from t")).thenReturn(statement);
+    when(statement.getFetchSize()).thenReturn(10);
+
+    Connection cached = StatementCachingConnection.wrap(connection, 4, new StatementCachingConnection.Stats());
+    PreparedStatement first = cached.prepareStatement("select a from t");
+    first.setMaxRows(5);
+    first.setQueryTimeout(30);
+    first.close();
+
+    verify(statement).setMaxRows(0);
+    verify(statement).setFetchSize(10);
+    verify(statement).setQueryTimeout(0);
+    cached.prepareStatement("select a from t").close();
+    verify(connection, times(1)).prepareStatement("select a from t");
+  }
+
+  @Test
+  public void release_closesStatementsWithOtherSettingsChanged() throws SQLException {
+    Connection connection = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    when(connection.prepareStatement("select a from t")).thenReturn(statement);
+
+    Connection cached = StatementCachingConnection.wrap(connection, 4, new StatementCachingConnection.Stats());
+    PreparedStatement first = cached.prepareStatement("select a from t");
+    first.setCursorName("c1");
+    first.close();
+
+    verify(statement).close();
+  }
+
+}
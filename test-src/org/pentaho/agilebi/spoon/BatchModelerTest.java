@@ -0,0 +1,39 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class BatchModelerTest {
+
+  @Test
+  public void uniqueFileName() {
+    Set<String> used = new HashSet<String>();
+    assertEquals("sales.xmi", BatchModeler.uniqueFileName("sales", used));
+    assertEquals("SALES_2.xmi", BatchModeler.uniqueFileName("SALES", used));
+    assertEquals("sales_3.xmi", BatchModeler.uniqueFileName("sales", used));
+    assertEquals("order_lines.xmi", BatchModeler.uniqueFileName("order lines", used));
+    assertEquals("a_b.xmi", BatchModeler.uniqueFileName("a/b", used));
+  }
+
+}
@@ -19,6 +19,7 @@ package org.pentaho.agilebi.spoon;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -26,6 +27,7 @@ import java.util.List;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.di.cluster.SlaveServer;
 import org.pentaho.di.core.KettleEnvironment;
 import org.pentaho.di.core.ProvidesDatabaseConnectionInformation;
@@ -40,6 +42,16 @@ import org.pentaho.di.job.entry.JobEntryInterface;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalColumn;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.model.LogicalTable;
+import org.pentaho.metadata.model.SqlDataSource;
+import org.pentaho.metadata.model.SqlPhysicalColumn;
+import org.pentaho.metadata.model.SqlPhysicalModel;
+import org.pentaho.metadata.model.SqlPhysicalTable;
+import org.pentaho.metadata.model.concept.types.DataType;
+import org.pentaho.metadata.model.concept.types.LocalizedString;
 import org.pentaho.metadata.registry.Type;
 import org.w3c.dom.Node;
 
@@ -226,4 +238,72 @@ public class ModelerHelperTest {
     assertEquals(transName, source.getMetaName());
     assertEquals(stepId, source.getMetaId());
   }
+
+  private static Domain createDomain() {
+    String locale = LocalizedString.DEFAULT_LOCALE;
+    SqlPhysicalModel physicalModel = new SqlPhysicalModel();
+    SqlDataSource dataSource = new SqlDataSource();
+    dataSource.setDatabaseName("SampleData");
+    physicalModel.setDatasource(dataSource);
+    physicalModel.setId("MODEL");
+    SqlPhysicalTable table = new SqlPhysicalTable(physicalModel);
+    table.setId("customers");
+    table.setTargetTable("customers");
+    physicalModel.getPhysicalTables().add(table);
+
+    LogicalModel logicalModel = new LogicalModel();
+    logicalModel.setName(new LocalizedString(locale, "Customers"));
+    LogicalTable logicalTable = new LogicalTable();
+    logicalTable.setId("BT_CUSTOMERS");
+    logicalTable.setPhysicalTable(table);
+    logicalModel.getLogicalTables().add(logicalTable);
+
+    String[] names = { "region", "amount" };
+    DataType[] types = { DataType.STRING, DataType.NUMERIC };
+    for (int i = 0; i < names.length; i++) {
+      SqlPhysicalColumn column = new SqlPhysicalColumn(table);
+      column.setId("customers_" + names[i]);
+      column.setTargetColumn(names[i]);
+      column.setName(new LocalizedString(locale, names[i]));
+      column.setDataType(types[i]);
+      table.getPhysicalColumns().add(column);
+
+      LogicalColumn logicalColumn = new LogicalColumn();
+      logicalColumn.setId("LC_CUSTOMERS_" + names[i]);
+      logicalColumn.setPhysicalColumn(column);
+      logicalColumn.setLogicalTable(logicalTable);
+      logicalColumn.setDataType(types[i]);
+      logicalTable.addLogicalColumn(logicalColumn);
+    }
+
+    Domain domain = new Domain();
+    domain.addPhysicalModel(physicalModel);
+    domain.addLogicalModel(logicalModel);
+    return domain;
+  }
+
+  @Test
+  public void copyInto_populatedWorkspace() throws Exception {
+    ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+    model.setDomain(createDomain());
+    model.getWorkspaceHelper().autoModelFlat(model);
+    ModelerWorkspace copy = new ModelerWorkspace(new SpoonModelerWorkspaceHelper());
+
+    String xmi = ModelerHelper.copyInto(model, copy, "Model 1", "models/Model 1.xmi");
+
+    assertTrue(xmi.contains("customers"));
+    assertNotSame(model.getDomain(), copy.getDomain());
+    assertEquals("models/Model 1.xmi", copy.getFileName());
+    assertEquals("Model 1", copy.getModelName());
+    assertTrue(copy.isTemporary());
+    assertFalse(copy.isDirty());
+    assertTrue(model.getModel().getMeasures().size() > 0);
+    assertEquals(model.getModel().getMeasures().size(), copy.getModel().getMeasures().size());
+    assertEquals(model.getModel().getDimensions().size(), copy.getModel().getDimensions().size());
+    assertEquals(model.getRelationalModel().getCategories().size(), copy.getRelationalModel().getCategories().size());
+
+    // the copy is independent of the original
+    copy.getModel().getMeasures().clear();
+    assertTrue(model.getModel().getMeasures().size() > 0);
+  }
 }
@@ -0,0 +1,125 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2017 Hitachi Vantara..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.pentaho.metadata.model.Domain;
+
+public class PhysicalTableMetadataCacheTest {
+
+  private long time = 0;
+
+  private PhysicalTableMetadataCache cache(long ttl, int maxEntries) {
+    return new PhysicalTableMetadataCache(ttl, maxEntries) {
+      @Override
+      long now() {
+        return time;
+      }
+    };
+  }
+
+  private Domain domain(String id) {
+    Domain domain = new Domain();
+    domain.setId(id);
+    return domain;
+  }
+
+  @Test
+  public void get_returnsCopy() throws Exception {
+    PhysicalTableMetadataCache cache = cache(1000, 10);
+    Domain domain = domain("sales");
+    cache.put("sales", domain, null);
+
+    Domain first = cache.get("sales");
+    assertNotNull(first);
+    assertEquals("sales", first.getId());
+    assertNotSame(domain, first);
+    assertNotSame(first, cache.get("sales"));
+  }
+
+  @Test
+  public void get_expires() throws Exception {
+    PhysicalTableMetadataCache cache = cache(1000, 10);
+    cache.put("sales", domain("sales"), null);
+
+    time = 999;
+    assertNotNull(cache.get("sales"));
+    time = 1000;
+    assertNull(cache.get("sales"));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyUsed() throws Exception {
+    PhysicalTableMetadataCache cache = cache(1000, 2);
+    cache.put("a", domain("a"), null);
+    cache.put("b", domain("b"), null);
+    cache.get("a");
+    cache.put("c", domain("c"), null);
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+
+  @Test
+  public void put_skipsNonSerializableDomains() throws Exception {
+    PhysicalTableMetadataCache cache = cache(1000, 10);
+    Domain domain = domain("sales");
+    domain.setProperty("plugin", new Object());
+
+    assertFalse(cache.put("sales", domain, null));
+    assertEquals(0, cache.getEntryCount());
+    assertNull(cache.get("sales"));
+  }
+
+  @Test
+  public void invalidatePopulator() throws Exception {
+    PhysicalTableMetadataCache cache = cache(1000, 10);
+    String load = PhysicalTableMetadataCache.getPopulatorId(null, "load_sales.ktr", "load sales");
+    cache.put("sales", domain("sales"), load);
+    cache.put("sales_archive", domain("sales_archive"), load);
+    cache.put("customers", domain("customers"), PhysicalTableMetadataCache.getPopulatorId(null, null, "customers"));
+
+    assertEquals(2, cache.invalidatePopulator(load));
+    assertNull(cache.get("sales"));
+    assertNull(cache.get("sales_archive"));
+    assertNotNull(cache.get("customers"));
+    assertEquals(0, cache.invalidatePopulator(null));
+  }
+
+  @Test
+  public void getPopulatorId() {
+    assertEquals("repo|/home/load.ktr", PhysicalTableMetadataCache.getPopulatorId("repo", "/home/load.ktr", "load"));
+    assertEquals("|load", PhysicalTableMetadataCache.getPopulatorId(null, null, "load"));
+  }
+
+  @Test
+  public void isEnabled() {
+    assertEquals(false, cache(0, 10).isEnabled());
+    assertEquals(false, cache(1000, 0).isEnabled());
+    assertEquals(true, cache(1000, 10).isEnabled());
+  }
+
+}
@@ -18,12 +18,15 @@
 package org.pentaho.agilebi.test;
 
 import java.io.File;
+import java.io.FileWriter;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
+import org.pentaho.agilebi.spoon.visualizations.prpt.PRPTVisualization;
+import org.pentaho.di.ui.spoon.FileListener;
 
 @SuppressWarnings("nls")
 public class VisualizationApiTest {
@@ -59,4 +62,66 @@ public class VisualizationApiTest {
     VisualizationManager mgr = new VisualizationManager("package-res/visualizations");
     Assert.assertEquals(2, mgr.getVisualizations().size());
   }
+
+  @Test
+  public void testVisualizationLookup() {
+    VisualizationManager mgr = new VisualizationManager("package-res/visualizations");
+    IVisualization analyzer = mgr.getVisualizationById("ANALYZER");
+    Assert.assertNotNull(analyzer);
+    Assert.assertSame(analyzer, mgr.getVisualization(analyzer.getTitle()));
+    Assert.assertEquals(mgr.getVisualizations().size(), mgr.getVisualizationNames().size());
+    Assert.assertNull(mgr.getVisualization("no such visualization"));
+  }
+
+  @Test
+  public void testVisualizationsCreatedOnFirstUse() throws Exception {
+    File dir = File.createTempFile("visualizations", "");
+    dir.delete();
+    File pluginDir = new File(dir, "counting");
+    pluginDir.mkdirs();
+    File pluginFile = new File(pluginDir, VisualizationManager.PLUGIN_FILE);
+    FileWriter writer = new FileWriter(pluginFile);
+    try {
+      writer.write("<beans xmlns=\"http://www.springframework.org/schema/beans\""
+          + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+          + " xsi:schemaLocation=\"http://www.springframework.org/schema/beans"
+          + " http://www.springframework.org/schema/beans/spring-beans-2.0.xsd\">"
+          + "<bean id=\"visualizationBean\" class=\"" + CountingVisualization.class.getName() + "\">"
+          + "<meta key=\"visualization-id\" value=\"REPORTING\"/><property name=\"extension\" value=\"prpt\"/>"
+          + "<property name=\"title\" value=\"Counting\"/><property name=\"order\" value=\"3\"/>"
+          + "</bean></beans>");
+    } finally {
+      writer.close();
+    }
+    try {
+      CountingVisualization.created = 0;
+      VisualizationManager mgr = new VisualizationManager(dir.getPath());
+      Assert.assertEquals(1, mgr.getVisualizationNames().size());
+      FileListener listener = mgr.getFileListeners().get(0);
+      Assert.assertEquals("prpt", listener.getSupportedExtensions()[0]);
+      Assert.assertTrue(listener.accepts("sales.prpt"));
+      Assert.assertFalse(listener.accepts("sales.xanalyzer"));
+      Assert.assertEquals(0, CountingVisualization.created);
+
+      IVisualization vis = mgr.getVisualizationById("REPORTING");
+      Assert.assertEquals(1, CountingVisualization.created);
+      Assert.assertEquals(3, vis.getOrder());
+      Assert.assertSame(vis, mgr.getVisualization(mgr.getVisualizationNames().get(0)));
+      Assert.assertSame(vis, mgr.getVisualizations().get(0));
+      Assert.assertEquals(1, CountingVisualization.created);
+    } finally {
+      pluginFile.delete();
+      pluginDir.delete();
+      dir.delete();
+    }
+  }
+
+  public static class CountingVisualization extends PRPTVisualization {
+
+    static int created;
+
+    public CountingVisualization() {
+      created++;
+    }
+  }
 }